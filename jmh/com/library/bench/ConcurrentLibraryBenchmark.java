@@ -0,0 +1,11 @@
+package com.library.bench;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The benchmarks of LibraryBenchmark, run from four threads against the
+ * same library to measure contention on its locks and indexes.
+ */
+@Threads(4)
+public class ConcurrentLibraryBenchmark extends LibraryBenchmark {
+}
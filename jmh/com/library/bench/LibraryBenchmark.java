@@ -0,0 +1,96 @@
+package com.library.bench;
+
+import com.library.model.BorrowRecord;
+import com.library.model.LibraryItem;
+import com.library.model.User;
+import com.library.service.FeeSummary;
+import com.library.service.ReportWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded benchmarks for the hot paths of the library service, over
+ * the catalog size, user count and history length of LibraryFixture.
+ * ConcurrentLibraryBenchmark runs the same methods from several threads.
+ *
+ * Run with gradle jmh; the gc profiler adds allocation per operation
+ * (gc.alloc.rate.norm) to every result.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(1)
+public class LibraryBenchmark {
+
+    /** Report target that drops everything, so only rendering is measured. */
+    private static final Appendable DISCARD = new Appendable() {
+        @Override
+        public Appendable append(CharSequence csq) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            return this;
+        }
+    };
+
+    @Benchmark
+    public boolean borrowReturn(LibraryFixture f) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        User user = f.userList.get(random.nextInt(f.userList.size()));
+        LibraryItem item = f.itemList.get(random.nextInt(f.itemList.size()));
+        return f.library.borrowItem(user, item, f.today, f.today.plusDays(14))
+                && f.library.returnItem(user, item);
+    }
+
+    @Benchmark
+    public List<LibraryItem> findItemsByTitle(LibraryFixture f) {
+        String[] words = LibraryFixture.WORDS;
+        return f.library.findItemsByTitle(words[ThreadLocalRandom.current().nextInt(words.length)], 0, 20);
+    }
+
+    @Benchmark
+    public List<BorrowRecord> getOverdueRecords(LibraryFixture f) {
+        return f.library.getOverdueRecords(f.today);
+    }
+
+    @Benchmark
+    public Map<User, Double> processOverdueItems(LibraryFixture f) {
+        return f.library.processOverdueItems(f.today);
+    }
+
+    @Benchmark
+    public FeeSummary aggregateLateFees(LibraryFixture f) {
+        return f.library.aggregateLateFees(f.today, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public long historyLateFees(LibraryFixture f) {
+        return f.library.getHistory().totalLateFeeCents(f.today);
+    }
+
+    @Benchmark
+    public String detailedReport(LibraryFixture f) {
+        return f.stats.generateDetailedLibraryReport(f.today);
+    }
+
+    @Benchmark
+    public void allUserReports(LibraryFixture f) throws IOException {
+        f.stats.writeAllUserReports(new ReportWriter(DISCARD));
+    }
+}
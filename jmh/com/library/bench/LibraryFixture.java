@@ -0,0 +1,96 @@
+package com.library.bench;
+
+import com.library.model.*;
+import com.library.service.Library;
+import com.library.service.LibraryStatistics;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A populated library shared by all benchmark threads: every user borrows
+ * and returns items until the history has the requested length, then a
+ * share of users keep one open loan each, half of them overdue.
+ *
+ * With metrics=true the library records LibraryMetrics while measuring, to
+ * show the cost of instrumentation.
+ */
+@State(Scope.Benchmark)
+public class LibraryFixture {
+    static final String[] WORDS = {
+        "java", "clean", "code", "effective", "nature", "time", "patterns", "design",
+        "systems", "history", "science", "algorithms", "networks", "music", "travel", "cooking"
+    };
+
+    @Param({"10000", "100000"})
+    public int items;
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"10000", "100000"})
+    public int history;
+
+    @Param({"false"})
+    public boolean metrics;
+
+    final LocalDate today = LocalDate.of(2024, 1, 15);
+    Library library;
+    LibraryStatistics stats;
+    final List<LibraryItem> itemList = new ArrayList<>();
+    final List<User> userList = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void populate() {
+        library = new Library("Benchmark Library", Clock.fixed(today.atStartOfDay(ZoneOffset.UTC).toInstant(), ZoneOffset.UTC));
+        stats = new LibraryStatistics(library);
+        Random random = new Random(42);
+        for (int i = 0; i < items; i++) {
+            String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            LibraryItem item = (i % 4 == 3)
+                    ? new Magazine("M" + i, title, 1990 + random.nextInt(35), 1 + random.nextInt(52), "Publisher " + random.nextInt(100))
+                    : new Book("B" + i, title, 1950 + random.nextInt(75), "Author " + random.nextInt(5000), "ISBN" + i, 100 + random.nextInt(900));
+            library.addItem(item);
+            itemList.add(item);
+        }
+        for (int i = 0; i < users; i++) {
+            User user = (i % 10 == 9)
+                    ? new Professor("U" + i, "Professor " + i, "p" + i + "@example.com", "Department " + (i % 20))
+                    : new Student("U" + i, "Student " + i, "s" + i + "@example.com", "S" + i);
+            library.addUser(user);
+            userList.add(user);
+        }
+        for (int i = 0; i < history; i++) {
+            User user = userList.get(random.nextInt(users));
+            LibraryItem item = itemList.get(random.nextInt(items));
+            LocalDate borrowed = today.minusDays(30 + random.nextInt(3650));
+            if (library.borrowItem(user, item, "H" + i, borrowed, borrowed.plusDays(14))) {
+                library.returnItem(user, item);
+            }
+        }
+        for (int i = 0; i < users / 4; i++) {
+            LocalDate borrowed = today.minusDays(random.nextInt(40));
+            library.borrowItem(userList.get(i), itemList.get(random.nextInt(items)), "O" + i, borrowed, borrowed.plusDays(21));
+        }
+        if (metrics) {
+            library.enableMetrics();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void printMetrics() {
+        if (metrics) {
+            System.out.println(library.getMetrics().snapshot());
+        }
+    }
+}
@@ -2,8 +2,11 @@ package com.library.main;
 
 import com.library.model.*;
 import com.library.service.DateUtils;
+import com.library.service.InMemoryNotificationSink;
 import com.library.service.Library;
 import com.library.service.LibraryStatistics;
+import com.library.service.NotificationDispatcher;
+import com.library.service.OverdueDigest;
 
 import java.time.LocalDate;
 import java.util.*;
@@ -107,6 +110,19 @@ public class LibraryApp {
             System.out.println(" - " + record.getRecordId() + ": " + record.sendOverdueNotification());
         }
 
+        // Send one digest per user with overdue items through the dispatcher
+        InMemoryNotificationSink sink = new InMemoryNotificationSink();
+        try (NotificationDispatcher dispatcher = new NotificationDispatcher(library, sink)) {
+            dispatcher.dispatchOverdue(library.today());
+            dispatcher.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("\nOverdue digests sent: " + sink.getDigests().size());
+        for (OverdueDigest digest : sink.getDigests()) {
+            System.out.print(digest.getMessage());
+        }
+
         // Return an item (Alice returns the magazine)
         boolean returned = library.returnItem(alice, mag1);
         System.out.println("\nAlice returned magazine M1: " + returned);
@@ -115,7 +131,7 @@ public class LibraryApp {
         for (BorrowRecord record : library.getBorrowRecords()) {
             if ("R3".equals(record.getRecordId())) {
                 System.out.println("\nMarking R3 as returned (overdue item):");
-                record.markAsReturned();
+                record.markAsReturned(library.today());
                 System.out.println(" - Record after return: " + record);
                 System.out.println(" - Late fee was: " + record.calculateLateFee());
                 break;
@@ -5,6 +5,9 @@ package com.library.model;
  * Inherits common behavior from LibraryItem.
  */
 public class Book extends LibraryItem {
+    public static final String AUTHOR = "author";
+    public static final String ISBN = "isbn";
+
     private String author;
     private String isbn;
     private int numberOfPages;
@@ -21,7 +24,9 @@ public class Book extends LibraryItem {
     }
 
     public void setAuthor(String author) {
+        String oldAuthor = this.author;
         this.author = author;
+        fireAttributeChange(AUTHOR, oldAuthor, author);
     }
 
     public String getIsbn() {
@@ -29,7 +34,9 @@ public class Book extends LibraryItem {
     }
 
     public void setIsbn(String isbn) {
+        String oldIsbn = this.isbn;
         this.isbn = isbn;
+        fireAttributeChange(ISBN, oldIsbn, isbn);
     }
 
     public int getNumberOfPages() {
@@ -1,7 +1,6 @@
 package com.library.model;
 
 import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
 import java.util.Objects;
 import com.library.service.DateUtils;
 
@@ -10,18 +9,28 @@ import com.library.service.DateUtils;
  * Demonstrates dependency on User and LibraryItem.
  *
  * When a user borrows an item, a BorrowRecord is created with a borrowDate and dueDate.
- * markAsReturned() will register the return on both the user and the item.
+ * markAsReturned(date) will register the return on both the user and the item; the
+ * user then notifies its listeners, which lets a Library close its open-loan entry.
+ * The return date is always given by the caller, typically Library.today(), so
+ * that it follows the library's clock.
+ *
+ * The record id is either a String or a non-negative long from a generator;
+ * a long id is only turned into its String form when getRecordId() asks for it.
  */
 public class BorrowRecord {
     private String recordId;
+    private long numericRecordId = NO_NUMERIC_ID;
     private User user;
     private LibraryItem item;
     private LocalDate borrowDate;
     private LocalDate dueDate;
-    private LocalDate returnDate;
+    private volatile LocalDate returnDate;
 
     public static final double LATE_FEE_PER_DAY = 0.5;
 
+    /** Value of getNumericRecordId() for records whose id was given as a String. */
+    public static final long NO_NUMERIC_ID = -1;
+
     public BorrowRecord(String recordId, User user, LibraryItem item, LocalDate borrowDate, LocalDate dueDate) {
         this.recordId = recordId;
         this.user = Objects.requireNonNull(user, "user");
@@ -31,8 +40,43 @@ public class BorrowRecord {
         this.returnDate = null;
     }
 
+    /**
+     * Recreates a record that has already been returned, e.g. when loading
+     * history from storage. It has no effect on the user or the item.
+     */
+    public BorrowRecord(String recordId, User user, LibraryItem item, LocalDate borrowDate, LocalDate dueDate, LocalDate returnDate) {
+        this(recordId, user, item, borrowDate, dueDate);
+        this.returnDate = Objects.requireNonNull(returnDate, "returnDate");
+    }
+
+    public BorrowRecord(long recordId, User user, LibraryItem item, LocalDate borrowDate, LocalDate dueDate) {
+        this((String) null, user, item, borrowDate, dueDate);
+        if (recordId < 0) throw new IllegalArgumentException("recordId must not be negative: " + recordId);
+        this.numericRecordId = recordId;
+    }
+
+    /**
+     * Recreates a returned record that has a numeric id.
+     */
+    public BorrowRecord(long recordId, User user, LibraryItem item, LocalDate borrowDate, LocalDate dueDate, LocalDate returnDate) {
+        this(recordId, user, item, borrowDate, dueDate);
+        this.returnDate = Objects.requireNonNull(returnDate, "returnDate");
+    }
+
     public String getRecordId() {
-        return recordId;
+        String id = recordId;
+        if (id == null && numericRecordId != NO_NUMERIC_ID) {
+            id = Long.toString(numericRecordId);
+            recordId = id;
+        }
+        return id;
+    }
+
+    /**
+     * The numeric record id, or NO_NUMERIC_ID if the id is a String.
+     */
+    public long getNumericRecordId() {
+        return numericRecordId;
     }
 
     public User getUser() {
@@ -56,31 +100,52 @@ public class BorrowRecord {
     }
 
     public boolean isOverdue() {
-        LocalDate checkDate = (returnDate != null) ? returnDate : LocalDate.now();
+        return isOverdue(LocalDate.now());
+    }
+
+    /**
+     * Whether the item was or will be late as of the given date. A returned
+     * record is judged by its return date.
+     */
+    public boolean isOverdue(LocalDate asOf) {
+        LocalDate checkDate = (returnDate != null) ? returnDate : asOf;
         return checkDate.isAfter(dueDate);
     }
 
     public double calculateLateFee() {
-        LocalDate checkDate = (returnDate != null) ? returnDate : LocalDate.now();
-        long daysOverdue = ChronoUnit.DAYS.between(dueDate, checkDate);
+        return calculateLateFee(LocalDate.now());
+    }
+
+    /**
+     * Late fee owed as of the given date, or up to the return date once returned.
+     */
+    public double calculateLateFee(LocalDate asOf) {
+        LocalDate checkDate = (returnDate != null) ? returnDate : asOf;
+        long daysOverdue = checkDate.toEpochDay() - dueDate.toEpochDay();
         if (daysOverdue <= 0) {
             return 0.0;
         }
         return daysOverdue * LATE_FEE_PER_DAY;
     }
 
-    public void markAsReturned() {
+    public void markAsReturned(LocalDate returnDate) {
+        Objects.requireNonNull(returnDate, "returnDate");
         if (this.returnDate != null) {
             return;
         }
-        this.returnDate = LocalDate.now();
+        this.returnDate = returnDate;
         user.returnItem(item);
     }
 
     public String sendOverdueNotification() {
-        if (isOverdue() && returnDate == null) {
-            long daysOverdue = DateUtils.daysBetween(dueDate, LocalDate.now());
-            double fee = calculateLateFee();
+        return sendOverdueNotification(LocalDate.now());
+    }
+
+    public String sendOverdueNotification(LocalDate asOf) {
+        LocalDate returned = returnDate;
+        if (returned == null && asOf.isAfter(dueDate)) {
+            long daysOverdue = DateUtils.daysBetween(dueDate, asOf);
+            double fee = calculateLateFee(asOf);
 
             if (daysOverdue > 7) {
                 return "URGENT: Item '" + item.getTitle() + "' is " + daysOverdue
@@ -102,6 +167,6 @@ public class BorrowRecord {
     @Override
     public String toString() {
         return String.format("BorrowRecord{id='%s', user=%s, item=%s, borrowDate=%s, dueDate=%s, returnDate=%s}",
-                recordId, user.getUserId(), item.getId(), borrowDate, dueDate, returnDate);
+                getRecordId(), user.getUserId(), item.getId(), borrowDate, dueDate, returnDate);
     }
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package com.library.model;
+
+/**
+ * Callback interface for objects that index LibraryItems by their attributes.
+ * A Library registers one of these on every item it holds so that its lookup
+ * structures stay correct when a setter changes an indexed value.
+ */
+public interface ItemListener {
+
+    /**
+     * Called before the id of an item changes. Throwing an exception
+     * rejects the change and leaves the item untouched.
+     */
+    void onIdChange(LibraryItem item, String oldId, String newId);
+
+    /**
+     * Called after a searchable attribute of an item has changed.
+     * The attribute is one of the name constants such as LibraryItem.TITLE.
+     */
+    void onAttributeChange(LibraryItem item, String attribute, Object oldValue, Object newValue);
+
+    /**
+     * Called after an item has been lent out or returned. Events for one
+     * item may arrive out of order when it changes hands concurrently, so
+     * listeners should read item.isAvailable() rather than trust the flag.
+     */
+    default void onAvailabilityChange(LibraryItem item, boolean available) {
+    }
+}
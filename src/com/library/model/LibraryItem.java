@@ -1,16 +1,37 @@
 package com.library.model;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Abstract base class for library items.
  * Demonstrates inheritance: Book and Magazine extend this class.
+ *
+ * Availability is switched with compare-and-set, so concurrent borrowers
+ * can never both take the same item.
  */
 public abstract class LibraryItem {
+    public static final String TITLE = "title";
+    public static final String PUBLICATION_YEAR = "publicationYear";
+
     private String id;
     private String title;
     private int publicationYear;
-    private boolean isAvailable;
+    private volatile boolean isAvailable;
+    private final List<ItemListener> listeners = new CopyOnWriteArrayList<>();
+
+    private static final VarHandle IS_AVAILABLE;
+
+    static {
+        try {
+            IS_AVAILABLE = MethodHandles.lookup().findVarHandle(LibraryItem.class, "isAvailable", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public LibraryItem(String id, String title, int publicationYear) {
         this.id = id;
@@ -24,6 +45,12 @@ public abstract class LibraryItem {
     }
 
     public void setId(String id) {
+        if (Objects.equals(this.id, id)) {
+            return;
+        }
+        for (ItemListener listener : listeners) {
+            listener.onIdChange(this, this.id, id);
+        }
         this.id = id;
     }
 
@@ -32,7 +59,9 @@ public abstract class LibraryItem {
     }
 
     public void setTitle(String title) {
+        String oldTitle = this.title;
         this.title = title;
+        fireAttributeChange(TITLE, oldTitle, title);
     }
 
     public int getPublicationYear() {
@@ -40,7 +69,9 @@ public abstract class LibraryItem {
     }
 
     public void setPublicationYear(int publicationYear) {
+        int oldYear = this.publicationYear;
         this.publicationYear = publicationYear;
+        fireAttributeChange(PUBLICATION_YEAR, oldYear, publicationYear);
     }
 
     public boolean isAvailable() {
@@ -48,23 +79,59 @@ public abstract class LibraryItem {
     }
 
     protected void setAvailable(boolean available) {
-        this.isAvailable = available;
+        if ((boolean) IS_AVAILABLE.getAndSet(this, available) != available) {
+            fireAvailabilityChange(available);
+        }
     }
 
     public abstract String getItemType();
 
+    public void addListener(ItemListener listener) {
+        listeners.add(Objects.requireNonNull(listener, "listener"));
+    }
+
+    public void removeListener(ItemListener listener) {
+        listeners.remove(listener);
+    }
+
+    protected void fireAttributeChange(String attribute, Object oldValue, Object newValue) {
+        if (Objects.equals(oldValue, newValue)) {
+            return;
+        }
+        for (ItemListener listener : listeners) {
+            listener.onAttributeChange(this, attribute, oldValue, newValue);
+        }
+    }
+
+    private void fireAvailabilityChange(boolean available) {
+        for (ItemListener listener : listeners) {
+            listener.onAvailabilityChange(this, available);
+        }
+    }
+
     public void borrowItem() {
-        if (!this.isAvailable) {
+        if (!tryBorrowItem()) {
             throw new IllegalStateException("Item is not available for borrowing: " + id);
         }
-        this.isAvailable = false;
+    }
+
+    /**
+     * Atomically marks the item as lent out.
+     * @return false if the item was not available
+     */
+    public boolean tryBorrowItem() {
+        if (!IS_AVAILABLE.compareAndSet(this, true, false)) {
+            return false;
+        }
+        fireAvailabilityChange(false);
+        return true;
     }
 
     public void returnItem() {
-        if (this.isAvailable) {
+        if (!IS_AVAILABLE.compareAndSet(this, false, true)) {
             throw new IllegalStateException("Item is already returned: " + id);
         }
-        this.isAvailable = true;
+        fireAvailabilityChange(true);
     }
 
     @Override
@@ -5,6 +5,9 @@ package com.library.model;
  * Inherits common behavior from LibraryItem.
  */
 public class Magazine extends LibraryItem {
+    public static final String PUBLISHER = "publisher";
+    public static final String ISSUE_NUMBER = "issueNumber";
+
     private int issueNumber;
     private String publisher;
 
@@ -19,7 +22,9 @@ public class Magazine extends LibraryItem {
     }
 
     public void setIssueNumber(int issueNumber) {
+        int oldIssue = this.issueNumber;
         this.issueNumber = issueNumber;
+        fireAttributeChange(ISSUE_NUMBER, oldIssue, issueNumber);
     }
 
     public String getPublisher() {
@@ -27,7 +32,9 @@ public class Magazine extends LibraryItem {
     }
 
     public void setPublisher(String publisher) {
+        String oldPublisher = this.publisher;
         this.publisher = publisher;
+        fireAttributeChange(PUBLISHER, oldPublisher, publisher);
     }
 
     @Override
@@ -17,6 +17,7 @@ public class Professor extends User {
 
     public void setDepartment(String department) {
         this.department = department;
+        bumpVersion();
     }
 
     @Override
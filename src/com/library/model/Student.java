@@ -17,6 +17,7 @@ public class Student extends User {
 
     public void setStudentId(String studentId) {
         this.studentId = studentId;
+        bumpVersion();
     }
 
     @Override
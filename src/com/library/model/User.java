@@ -1,24 +1,38 @@
 package com.library.model;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract base class for users of the library.
  * Demonstrates inheritance: Student and Professor extend this class.
  * Association: User borrows LibraryItems.
+ *
+ * Borrowing is lock-free: a loan slot is reserved on an atomic counter that
+ * never exceeds getMaxBorrowLimit(), then the item is claimed with a CAS.
+ *
+ * Every change to what a user report shows (loans, returns, setters) bumps
+ * getVersion() after it has been applied, so anything derived from a user
+ * and stamped with the version read beforehand is stale once it differs.
  */
 public abstract class User {
     private String userId;
     private String name;
     private String email;
     private List<LibraryItem> borrowedItems;
+    private final AtomicInteger loanCount = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    private final List<UserListener> listeners = new CopyOnWriteArrayList<>();
 
     public User(String userId, String name, String email) {
         this.userId = userId;
         this.name = name;
         this.email = email;
-        this.borrowedItems = new ArrayList<>();
+        this.borrowedItems = new CopyOnWriteArrayList<>();
     }
 
     public String getUserId() {
@@ -26,7 +40,14 @@ public abstract class User {
     }
 
     public void setUserId(String userId) {
+        if (Objects.equals(this.userId, userId)) {
+            return;
+        }
+        for (UserListener listener : listeners) {
+            listener.onIdChange(this, this.userId, userId);
+        }
         this.userId = userId;
+        bumpVersion();
     }
 
     public String getName() {
@@ -35,6 +56,7 @@ public abstract class User {
 
     public void setName(String name) {
         this.name = name;
+        bumpVersion();
     }
 
     public String getEmail() {
@@ -43,42 +65,87 @@ public abstract class User {
 
     public void setEmail(String email) {
         this.email = email;
+        bumpVersion();
     }
 
     public List<LibraryItem> getBorrowedItems() {
-        return borrowedItems;
+        return Collections.unmodifiableList(borrowedItems);
     }
 
     public abstract int getMaxBorrowLimit();
 
+    /**
+     * Counter of the changes made to this user.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Subclasses call this after changing a field of their own.
+     */
+    protected final void bumpVersion() {
+        version.incrementAndGet();
+    }
+
+    public void addListener(UserListener listener) {
+        listeners.add(Objects.requireNonNull(listener, "listener"));
+    }
+
+    public void removeListener(UserListener listener) {
+        listeners.remove(listener);
+    }
+
     public boolean borrowItem(LibraryItem item) {
-        if (borrowedItems.size() >= getMaxBorrowLimit()) { 
+        if (!reserveLoanSlot()) {
             return false;
         }
-        if (!item.isAvailable()) {
+        if (!item.tryBorrowItem()) {
+            loanCount.decrementAndGet();
+            // the count was briefly one higher and may have been read
+            bumpVersion();
             return false;
         }
-        try {
-        item.borrowItem();
         borrowedItems.add(item);
-        return true;
-    }
-        catch(IllegalStateException e) {
-            return false;
+        bumpVersion();
+        for (UserListener listener : listeners) {
+            listener.onItemBorrowed(this, item);
         }
+        return true;
     }
 
+    /**
+     * Listeners run after the item has left borrowedItems but before it becomes
+     * available again, so nobody can borrow it while they update their state.
+     */
     public boolean returnItem(LibraryItem item) {
-        if (borrowedItems.contains(item)) {
+        if (borrowedItems.remove(item)) {
+            for (UserListener listener : listeners) {
+                listener.onItemReturned(this, item);
+            }
             item.returnItem();
-            borrowedItems.remove(item);
+            loanCount.decrementAndGet();
+            bumpVersion();
             return true;
         }
         return false;
     }
 
     public int getBorrowedItemsCount() {
-        return borrowedItems.size();
+        return loanCount.get();
+    }
+
+    private boolean reserveLoanSlot() {
+        int limit = getMaxBorrowLimit();
+        while (true) {
+            int current = loanCount.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (loanCount.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
     }
 
     public boolean renewItem(LibraryItem item, int additionalDays) {
@@ -104,6 +171,6 @@ public abstract class User {
     @Override
     public String toString() {
         return String.format("%s{id='%s', name='%s', email='%s', borrowedItems=%d}",
-                getClass().getSimpleName(), userId, name, email, borrowedItems.size());
+                getClass().getSimpleName(), userId, name, email, getBorrowedItemsCount());
     }
 }
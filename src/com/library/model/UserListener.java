@@ -0,0 +1,26 @@
+package com.library.model;
+
+/**
+ * Callback interface for objects that index Users by their attributes.
+ * A Library registers one of these on every user it manages.
+ */
+public interface UserListener {
+
+    /**
+     * Called before the id of a user changes. Throwing an exception
+     * rejects the change and leaves the user untouched.
+     */
+    void onIdChange(User user, String oldId, String newId);
+
+    /**
+     * Called after the user has taken an item, whichever code path triggered
+     * the borrow.
+     */
+    void onItemBorrowed(User user, LibraryItem item);
+
+    /**
+     * Called when the user hands an item back, whichever code path triggered
+     * the return. The item is not yet available to other borrowers.
+     */
+    void onItemReturned(User user, LibraryItem item);
+}
@@ -0,0 +1,224 @@
+package com.library.service;
+
+import com.library.model.LibraryItem;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Exact-match index over one attribute of the catalog: each distinct value
+ * maps to an IntBitmap of the ordinals of the items that have it. Keys are
+ * kept in order, so integer attributes can also be queried by range. String
+ * values are compared case-insensitively; items whose value is null are not
+ * indexed.
+ *
+ * Locking follows NGramIndex: updates take the write lock, lookups the read
+ * lock. New items are read under the write lock, so an add racing a setter
+ * whose update is still to come never leaves the old value behind.
+ */
+final class AttributeIndex {
+    @SuppressWarnings("unchecked")
+    private static final Comparator<Object> NATURAL_ORDER = (a, b) -> ((Comparable<Object>) a).compareTo(b);
+
+    private final Function<LibraryItem, Object> extractor;
+    private final NavigableMap<Object, IntBitmap> postings = new TreeMap<>(NATURAL_ORDER);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    AttributeIndex(Function<LibraryItem, Object> extractor) {
+        this.extractor = extractor;
+    }
+
+    void add(int ordinal, LibraryItem item) {
+        lock.writeLock().lock();
+        try {
+            Object key = key(extractor.apply(item));
+            if (key != null) {
+                postings.computeIfAbsent(key, k -> new IntBitmap()).add(ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes a batch of consecutive ordinals starting at firstOrdinal under
+     * a single write lock.
+     */
+    void addAll(int firstOrdinal, List<? extends LibraryItem> batch) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Object key = key(extractor.apply(batch.get(i)));
+                if (key != null) {
+                    postings.computeIfAbsent(key, k -> new IntBitmap()).add(firstOrdinal + i);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void update(int ordinal, Object oldValue, Object newValue) {
+        Object oldKey = key(oldValue);
+        Object newKey = key(newValue);
+        lock.writeLock().lock();
+        try {
+            if (oldKey != null) {
+                IntBitmap list = postings.get(oldKey);
+                if (list != null && list.remove(ordinal) && list.isEmpty()) {
+                    postings.remove(oldKey);
+                }
+            }
+            if (newKey != null) {
+                postings.computeIfAbsent(newKey, k -> new IntBitmap()).add(ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of items with the given value.
+     */
+    int count(Object value) {
+        lock.readLock().lock();
+        try {
+            IntBitmap list = postings.get(key(value));
+            return list == null ? 0 : list.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of items whose value is in [from, to].
+     */
+    int countRange(Object from, Object to) {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (IntBitmap list : range(from, to)) {
+                count += list.size();
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sorted ordinals of the items with the given value.
+     */
+    int[] lookup(Object value) {
+        lock.readLock().lock();
+        try {
+            IntBitmap list = postings.get(key(value));
+            return list == null ? new int[0] : list.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sorted ordinals of the items whose value is in [from, to].
+     */
+    int[] lookupRange(Object from, Object to) {
+        lock.readLock().lock();
+        try {
+            return union(range(from, to)).toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Keeps the first count candidates (sorted) that have the given value,
+     * compacting them in place, and returns how many were kept.
+     */
+    int retainIn(int[] candidates, int count, Object value) {
+        lock.readLock().lock();
+        try {
+            return retain(candidates, count, postings.get(key(value)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * As retainIn, keeping the candidates whose value is in [from, to].
+     */
+    int retainInRange(int[] candidates, int count, Object from, Object to) {
+        lock.readLock().lock();
+        try {
+            return retain(candidates, count, union(range(from, to)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A copy of the ordinals with the given value, to intersect with others.
+     */
+    IntBitmap bitmap(Object value) {
+        lock.readLock().lock();
+        try {
+            IntBitmap list = postings.get(key(value));
+            return list == null ? new IntBitmap() : list.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The ordinals whose value is in [from, to], as one new bitmap.
+     */
+    IntBitmap bitmapRange(Object from, Object to) {
+        lock.readLock().lock();
+        try {
+            return union(range(from, to));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int retain(int[] candidates, int count, IntBitmap list) {
+        if (list == null) {
+            return 0;
+        }
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (list.contains(candidates[i])) {
+                candidates[kept++] = candidates[i];
+            }
+        }
+        return kept;
+    }
+
+    private static IntBitmap union(Collection<IntBitmap> lists) {
+        IntBitmap result = new IntBitmap();
+        for (IntBitmap list : lists) {
+            result.or(list);
+        }
+        return result;
+    }
+
+    private Collection<IntBitmap> range(Object from, Object to) {
+        Object low = key(from);
+        Object high = key(to);
+        if (NATURAL_ORDER.compare(low, high) > 0) {
+            return new ArrayList<>();
+        }
+        return postings.subMap(low, true, high, true).values();
+    }
+
+    static Object key(Object value) {
+        return value instanceof String ? ((String) value).toLowerCase(Locale.ROOT) : value;
+    }
+}
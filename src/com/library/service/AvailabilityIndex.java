@@ -0,0 +1,82 @@
+package com.library.service;
+
+import com.library.model.LibraryItem;
+import java.util.List;
+
+/**
+ * Ordinals of the items that are on the shelf, as an IntBitmap kept current
+ * from the items' availability events. Counting is O(1); paging walks the
+ * bitmap from a position, a batch of ordinals per lock.
+ *
+ * Updates do not apply the flag carried by the event but re-read the item
+ * under the lock: events of one item can be delivered out of order, but the
+ * last update to run always sees the item's latest state.
+ */
+final class AvailabilityIndex {
+    private final IntBitmap available = new IntBitmap();
+    private volatile int count;
+
+    synchronized void update(int ordinal, LibraryItem item) {
+        if (ordinal < 0) {
+            return;
+        }
+        if (item.isAvailable()) {
+            available.add(ordinal);
+        } else {
+            available.remove(ordinal);
+        }
+        count = available.size();
+    }
+
+    /**
+     * Records the state of a batch of consecutive ordinals starting at firstOrdinal.
+     */
+    synchronized void addAll(int firstOrdinal, List<? extends LibraryItem> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).isAvailable()) {
+                available.add(firstOrdinal + i);
+            }
+        }
+        count = available.size();
+    }
+
+    /**
+     * Marks count consecutive ordinals from firstOrdinal as available
+     * without reading their items, as restoring a snapshot image does.
+     */
+    synchronized void addRange(int firstOrdinal, int count) {
+        for (int i = 0; i < count; i++) {
+            available.add(firstOrdinal + i);
+        }
+        this.count = available.size();
+    }
+
+    int count() {
+        return count;
+    }
+
+    synchronized boolean contains(int ordinal) {
+        return available.contains(ordinal);
+    }
+
+    /**
+     * Copies up to target.length available ordinals that are at least from
+     * into target, in ascending order, and returns how many were copied.
+     */
+    synchronized int fill(int from, int[] target) {
+        int n = 0;
+        for (int ordinal = available.nextSetBit(from); ordinal >= 0 && n < target.length;
+                ordinal = ordinal == Integer.MAX_VALUE ? -1 : available.nextSetBit(ordinal + 1)) {
+            target[n++] = ordinal;
+        }
+        return n;
+    }
+
+    synchronized int andCardinality(IntBitmap other) {
+        return available.andCardinality(other);
+    }
+
+    synchronized IntBitmap and(IntBitmap other) {
+        return IntBitmap.and(available, other);
+    }
+}
@@ -0,0 +1,770 @@
+package com.library.service;
+
+import com.library.model.BorrowRecord;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Columnar store for the borrow history of a Library.
+ *
+ * Every loan is one row across primitive columns: user and item ordinals
+ * (int surrogate keys into the library's registries), borrow, due and
+ * return dates as epoch days, and the record id: either a numeric id as is
+ * or a dictionary code for a String id.
+ * Returned loans exist only as rows; {@link #get(int)} builds a BorrowRecord
+ * view on demand, and {@link #forEach(RowVisitor)} and the fee methods scan
+ * the columns without allocating per row.
+ *
+ * Columns are split into fixed-size chunks so that appends never copy old
+ * rows. A row is reserved with an atomic counter and becomes visible to
+ * readers when its user column is written with volatile semantics; readers
+ * skip rows that are reserved but not yet committed. The bulk fee and
+ * overdue sweeps read the date columns with plain loads, so they stop at
+ * the committed prefix instead: a high-water mark below which every row is
+ * committed, advanced by each append once the rows before it are.
+ *
+ * Rows carry the epoch (see EpochGate) of their borrow and of their
+ * return. pinView captures the rows as they were when it closes an epoch:
+ * later rows are left out and later returns read as open loans. Nothing is
+ * copied; the view only keeps the chunk and segment arrays of the moment,
+ * taken together with the epoch close, which archive replaces rather than
+ * changes.
+ *
+ * Old chunks can be moved off the heap with archive: a full chunk whose
+ * loans were all returned before a cutoff is written to a HistorySegment
+ * file and dropped, and reads of its rows decode the mapped file instead.
+ * Segments keep no epochs, so a chunk is archived only once every open
+ * snapshot's epoch has seen all of its returns. Chunks holding an open loan
+ * stay in memory. Scans skip segments using
+ * their summaries; in particular a segment has no open loans and a fixed
+ * late-fee total, so the fee totals never decode it.
+ */
+public final class BorrowHistory {
+    /** Return-day value of a loan that is still open. */
+    public static final int NOT_RETURNED = Integer.MIN_VALUE;
+
+    static final long LATE_FEE_CENTS_PER_DAY = Math.round(BorrowRecord.LATE_FEE_PER_DAY * 100);
+
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final Library library;
+    private final StringDictionary recordIds = new StringDictionary();
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final AtomicInteger committed = new AtomicInteger();
+    private volatile Chunk[] chunks = new Chunk[16];
+    // written before the chunk it replaces is cleared, so a reader that
+    // finds no chunk and then no segment is looking at an unallocated chunk
+    private volatile HistorySegment[] segments = new HistorySegment[16];
+    private final Object archiveLock = new Object();
+    // held while the chunk and segment arrays change places and while a view
+    // closes its epoch and takes them, so the two never interleave
+    private final Object installLock = new Object();
+
+    /**
+     * Receives one history row at a time. Return day is NOT_RETURNED for
+     * open loans.
+     */
+    @FunctionalInterface
+    public interface RowVisitor {
+        void visit(int row, int userOrdinal, int itemOrdinal, int borrowDay, int dueDay, int returnDay);
+    }
+
+    BorrowHistory(Library library) {
+        this.library = library;
+    }
+
+    /**
+     * Number of rows, including any reserved by borrows still in progress.
+     */
+    public int size() {
+        return reserved.get();
+    }
+
+    /**
+     * A BorrowRecord for the given row. Open loans return the live record;
+     * returned loans return a new, detached view. Null for a row whose borrow
+     * has not finished yet.
+     */
+    public BorrowRecord get(int row) {
+        if (row < 0 || row >= size()) throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size());
+        Chunk chunk = chunk(row);
+        if (chunk == null) {
+            HistorySegment segment = segment(row);
+            if (segment == null) {
+                return null;
+            }
+            HistorySegment.Cursor cursor = segment.cursor(row);
+            cursor.next();
+            return view(cursor.user, cursor.item, cursor.borrowDay, cursor.dueDay, cursor.returnDay,
+                    cursor.numericId(), cursor.stringId());
+        }
+        int slot = row & CHUNK_MASK;
+        int user = (int) INTS.getAcquire(chunk.users, slot) - 1;
+        if (user < 0) {
+            return null;
+        }
+        int item = chunk.items[slot];
+        int returnDay = (int) INTS.getAcquire(chunk.returnDays, slot);
+        if (returnDay == NOT_RETURNED) {
+            BorrowRecord open = library.openRecordAt(item, row);
+            if (open != null) {
+                return open;
+            }
+            // closed since the first read, or still being closed
+            returnDay = (int) INTS.getAcquire(chunk.returnDays, slot);
+        }
+        long numericId = chunk.numericIds[slot];
+        String recordId = numericId == BorrowRecord.NO_NUMERIC_ID ? recordIds.get(chunk.recordIds[slot]) : null;
+        return view(user, item, chunk.borrowDays[slot], chunk.dueDays[slot], returnDay, numericId, recordId);
+    }
+
+    private BorrowRecord view(int user, int item, int borrowDay, int dueDay, int returnDay, long numericId, String recordId) {
+        LocalDate borrowDate = LocalDate.ofEpochDay(borrowDay);
+        LocalDate dueDate = LocalDate.ofEpochDay(dueDay);
+        if (numericId != BorrowRecord.NO_NUMERIC_ID) {
+            if (returnDay == NOT_RETURNED) {
+                return new BorrowRecord(numericId, library.getUser(user), library.getItem(item), borrowDate, dueDate);
+            }
+            return new BorrowRecord(numericId, library.getUser(user), library.getItem(item), borrowDate, dueDate,
+                    LocalDate.ofEpochDay(returnDay));
+        }
+        if (returnDay == NOT_RETURNED) {
+            return new BorrowRecord(recordId, library.getUser(user), library.getItem(item), borrowDate, dueDate);
+        }
+        return new BorrowRecord(recordId, library.getUser(user), library.getItem(item), borrowDate, dueDate,
+                LocalDate.ofEpochDay(returnDay));
+    }
+
+    /**
+     * Read-only list over the rows committed when the method was called.
+     */
+    public List<BorrowRecord> asList() {
+        int count = size();
+        return new AbstractList<BorrowRecord>() {
+            @Override
+            public BorrowRecord get(int index) {
+                if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+                return BorrowHistory.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    public void forEach(RowVisitor visitor) {
+        forEach(0, size(), visitor);
+    }
+
+    /**
+     * Visits the committed rows in [from, to).
+     */
+    public void forEach(int from, int to, RowVisitor visitor) {
+        int row = from;
+        while (row < to) {
+            Chunk chunk = chunk(row);
+            int end = Math.min(to, (row & ~CHUNK_MASK) + CHUNK_SIZE);
+            if (chunk == null) {
+                HistorySegment segment = segment(row);
+                if (segment != null) {
+                    segment.forEach(row, end, visitor);
+                }
+                row = end;
+                continue;
+            }
+            for (int slot = row & CHUNK_MASK; row < end; row++, slot++) {
+                int user = (int) INTS.getAcquire(chunk.users, slot) - 1;
+                if (user >= 0) {
+                    visitor.visit(row, user, chunk.items[slot], chunk.borrowDays[slot], chunk.dueDays[slot],
+                            (int) INTS.getAcquire(chunk.returnDays, slot));
+                }
+            }
+        }
+    }
+
+    /**
+     * Late fees, in cents, of every loan in the history as of the given date:
+     * returned loans are charged up to their return, open ones up to asOf.
+     *
+     * Runs the DateUtils kernel over each chunk's date columns, up to the
+     * committed prefix so that every row it reads is fully written. Rows
+     * committed after a borrow still in progress are counted once it ends.
+     */
+    public long totalLateFeeCents(LocalDate asOf) {
+        int asOfDay = (int) asOf.toEpochDay();
+        int count = committed.get();
+        Chunk[] current = chunks;
+        long days = 0;
+        for (int index = 0; index < current.length && index * CHUNK_SIZE < count; index++) {
+            Chunk chunk = current[index];
+            if (chunk != null) {
+                int rows = Math.min(CHUNK_SIZE, count - index * CHUNK_SIZE);
+                days += DateUtils.sumDaysOverdue(chunk.dueDays, chunk.returnDays, 0, rows, asOfDay, NOT_RETURNED);
+            } else {
+                HistorySegment segment = segment(index << CHUNK_BITS);
+                days += segment == null ? 0 : segment.lateDays;
+            }
+        }
+        return days * LATE_FEE_CENTS_PER_DAY;
+    }
+
+    /**
+     * Number of loans still open and overdue as of the given date, over the
+     * committed prefix as in totalLateFeeCents.
+     */
+    public int countOverdue(LocalDate asOf) {
+        int asOfDay = (int) asOf.toEpochDay();
+        int count = committed.get();
+        Chunk[] current = chunks;
+        int overdue = 0;
+        for (int index = 0; index < current.length && index * CHUNK_SIZE < count; index++) {
+            Chunk chunk = current[index];
+            if (chunk != null) {
+                int rows = Math.min(CHUNK_SIZE, count - index * CHUNK_SIZE);
+                overdue += DateUtils.countOverdue(chunk.dueDays, chunk.returnDays, 0, rows, asOfDay, NOT_RETURNED);
+            }
+        }
+        return overdue;
+    }
+
+    /**
+     * Late fees in cents per user ordinal, as in totalLateFeeCents.
+     */
+    public long[] lateFeeCentsByUser(LocalDate asOf) {
+        int asOfDay = (int) asOf.toEpochDay();
+        long[] days = new long[library.getUserCount()];
+        int count = committed.get();
+        Chunk[] current = chunks;
+        for (int index = 0; index < current.length && index * CHUNK_SIZE < count; index++) {
+            Chunk chunk = current[index];
+            if (chunk == null) {
+                HistorySegment segment = segment(index << CHUNK_BITS);
+                if (segment != null && segment.lateDays > 0) {
+                    segment.forEach(segment.firstRow, segment.firstRow + segment.rowCount,
+                            (row, user, item, borrowDay, dueDay, returnDay) -> {
+                                if (user < days.length) {
+                                    days[user] += DateUtils.daysOverdue(dueDay, returnDay);
+                                }
+                            });
+                }
+                continue;
+            }
+            int rows = Math.min(CHUNK_SIZE, count - index * CHUNK_SIZE);
+            for (int slot = 0; slot < rows; slot++) {
+                int user = chunk.users[slot] - 1;
+                int returnDay = chunk.returnDays[slot];
+                int late = DateUtils.daysOverdue(chunk.dueDays[slot], returnDay == NOT_RETURNED ? asOfDay : returnDay);
+                if (late > 0 && user >= 0 && user < days.length) {
+                    days[user] += late;
+                }
+            }
+        }
+        for (int user = 0; user < days.length; user++) {
+            days[user] *= LATE_FEE_CENTS_PER_DAY;
+        }
+        return days;
+    }
+
+    /**
+     * Late fees in cents per user ordinal over the committed prefix,
+     * computed by splitting the rows across the pool. With openOnly, only
+     * loans still open and overdue as of asOfDay are charged, as in
+     * Library.processOverdueItems; otherwise returned loans are charged up
+     * to their return day as well.
+     */
+    IntLongMap aggregateLateFees(int asOfDay, boolean openOnly, ForkJoinPool pool) {
+        return pool.invoke(new LateFeeTask((from, to, cents) -> accumulateLateFees(from, to, asOfDay, openOnly, cents),
+                0, committed.get()));
+    }
+
+    private void accumulateLateFees(int from, int to, int asOfDay, boolean openOnly, IntLongMap cents) {
+        int row = from;
+        while (row < to) {
+            Chunk chunk = chunk(row);
+            int end = Math.min(to, (row & ~CHUNK_MASK) + CHUNK_SIZE);
+            if (chunk == null) {
+                HistorySegment segment = segment(row);
+                // archived loans are all returned, so only a full scan can find fees there
+                if (segment != null && !openOnly && segment.lateDays > 0) {
+                    segment.forEach(row, end, (r, user, item, borrowDay, dueDay, returnDay) -> {
+                        int late = DateUtils.daysOverdue(dueDay, returnDay);
+                        if (late > 0) {
+                            cents.add(user, late * LATE_FEE_CENTS_PER_DAY);
+                        }
+                    });
+                }
+                row = end;
+                continue;
+            }
+            for (int slot = row & CHUNK_MASK; row < end; row++, slot++) {
+                int returnDay = chunk.returnDays[slot];
+                if (openOnly && returnDay != NOT_RETURNED) {
+                    continue;
+                }
+                int late = DateUtils.daysOverdue(chunk.dueDays[slot], returnDay == NOT_RETURNED ? asOfDay : returnDay);
+                int user = chunk.users[slot] - 1;
+                if (late > 0 && user >= 0) {
+                    cents.add(user, late * LATE_FEE_CENTS_PER_DAY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the late fees of the rows in [from, to) to cents.
+     */
+    @FunctionalInterface
+    private interface FeeAccumulator {
+        void accumulate(int from, int to, IntLongMap cents);
+    }
+
+    /**
+     * Splits a row range in halves down to THRESHOLD rows; each leaf fills
+     * its own map and the maps are merged as the tasks join. Leaf maps start
+     * small and grow with the users actually charged, which in a leaf are
+     * usually far fewer than its rows.
+     */
+    private static final class LateFeeTask extends RecursiveTask<IntLongMap> {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 1 << 15;
+
+        private final transient FeeAccumulator rows;
+        private final int from;
+        private final int to;
+
+        LateFeeTask(FeeAccumulator rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected IntLongMap compute() {
+            if (to - from <= THRESHOLD) {
+                IntLongMap cents = new IntLongMap();
+                rows.accumulate(from, to, cents);
+                return cents;
+            }
+            int middle = (from + to) >>> 1;
+            LateFeeTask right = new LateFeeTask(rows, middle, to);
+            right.fork();
+            IntLongMap left = new LateFeeTask(rows, from, middle).compute();
+            IntLongMap other = right.join();
+            return left.size() >= other.size() ? left.merge(other) : other.merge(left);
+        }
+    }
+
+    /**
+     * Appends a row made in the given epoch and returns its index. A record
+     * has either a String id or a numeric one; numeric ids are stored as they
+     * are and stay out of the dictionary.
+     */
+    int append(String recordId, long numericId, int userOrdinal, int itemOrdinal,
+               LocalDate borrowDate, LocalDate dueDate, LocalDate returnDate, int epoch) {
+        int row = reserved.getAndIncrement();
+        Chunk chunk = chunkForWrite(row);
+        int slot = row & CHUNK_MASK;
+        chunk.numericIds[slot] = numericId;
+        chunk.recordIds[slot] = numericId == BorrowRecord.NO_NUMERIC_ID ? recordIds.encode(recordId) : -1;
+        chunk.items[slot] = itemOrdinal;
+        chunk.borrowDays[slot] = (int) borrowDate.toEpochDay();
+        chunk.dueDays[slot] = (int) dueDate.toEpochDay();
+        chunk.borrowEpochs[slot] = epoch;
+        INTS.setRelease(chunk.returnDays, slot, returnDate == null ? NOT_RETURNED : (int) returnDate.toEpochDay());
+        INTS.setRelease(chunk.returnEpochs, slot, returnDate == null ? 0 : epoch);
+        INTS.setVolatile(chunk.users, slot, userOrdinal + 1);
+        publish();
+        return row;
+    }
+
+    /**
+     * Moves the committed prefix past every row that is now committed. Each
+     * append calls it after committing its row; the commit and the reads
+     * here are volatile, so of appends finishing out of order the last one
+     * to publish sees all the others' rows.
+     */
+    private void publish() {
+        int next;
+        while ((next = committed.get()) < reserved.get()) {
+            Chunk chunk = chunk(next);
+            // a chunk that has been archived was full and committed
+            boolean done = chunk == null
+                    ? segment(next) != null
+                    : (int) INTS.getVolatile(chunk.users, next & CHUNK_MASK) != 0;
+            if (!done) {
+                return;
+            }
+            committed.compareAndSet(next, next + 1);
+        }
+    }
+
+    /**
+     * Fills an empty history with rowCount rows copied column by column, as
+     * restoring a snapshot image does: no row is appended one at a time and
+     * no record is built. users holds ordinal + 1 as the columns store it;
+     * for rows without a numeric id, recordIdRefs holds a code that
+     * recordIdOf turns into the String id. Every row gets the given epoch.
+     * Must not run concurrently with appends.
+     */
+    synchronized void restore(int rowCount, IntBuffer users, IntBuffer items, IntBuffer borrowDays, IntBuffer dueDays,
+                              IntBuffer returnDays, LongBuffer numericIds, IntBuffer recordIdRefs,
+                              IntFunction<String> recordIdOf, int epoch) {
+        if (size() != 0) {
+            throw new IllegalStateException("History is not empty");
+        }
+        int chunkCount = (rowCount + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        Chunk[] restored = new Chunk[Math.max(chunks.length, chunkCount)];
+        for (int index = 0; index < chunkCount; index++) {
+            Chunk chunk = new Chunk();
+            int first = index << CHUNK_BITS;
+            int rows = Math.min(CHUNK_SIZE, rowCount - first);
+            users.get(first, chunk.users, 0, rows);
+            items.get(first, chunk.items, 0, rows);
+            borrowDays.get(first, chunk.borrowDays, 0, rows);
+            dueDays.get(first, chunk.dueDays, 0, rows);
+            returnDays.get(first, chunk.returnDays, 0, rows);
+            numericIds.get(first, chunk.numericIds, 0, rows);
+            Arrays.fill(chunk.borrowEpochs, 0, rows, epoch);
+            for (int slot = 0; slot < rows; slot++) {
+                chunk.recordIds[slot] = chunk.numericIds[slot] == BorrowRecord.NO_NUMERIC_ID
+                        ? recordIds.encode(recordIdOf.apply(recordIdRefs.get(first + slot))) : -1;
+                chunk.returnEpochs[slot] = chunk.returnDays[slot] == NOT_RETURNED ? 0 : epoch;
+            }
+            restored[index] = chunk;
+        }
+        chunks = restored;
+        reserved.set(rowCount);
+        committed.set(rowCount);
+    }
+
+    /**
+     * Records the return of a row in the given epoch. The return day is
+     * written before the epoch, so a view that sees the epoch sees the day.
+     */
+    void markReturned(int row, LocalDate returnDate, int epoch) {
+        Chunk chunk = chunk(row);
+        INTS.setRelease(chunk.returnDays, row & CHUNK_MASK, (int) returnDate.toEpochDay());
+        INTS.setRelease(chunk.returnEpochs, row & CHUNK_MASK, epoch);
+    }
+
+    /**
+     * Closes the current epoch, pinning it for owner, and returns the rows as
+     * of its end. No chunk is archived between the close and the capture.
+     */
+    View pinView(EpochGate epochs, Object owner) {
+        synchronized (installLock) {
+            int epoch = epochs.pin(owner);
+            return new View(chunks, segments, size(), epoch);
+        }
+    }
+
+    String recordId(int row) {
+        Chunk chunk = chunk(row);
+        if (chunk == null) {
+            HistorySegment.Cursor cursor = segment(row).cursor(row);
+            cursor.next();
+            long numericId = cursor.numericId();
+            return numericId == BorrowRecord.NO_NUMERIC_ID ? cursor.stringId() : Long.toString(numericId);
+        }
+        long numericId = chunk.numericIds[row & CHUNK_MASK];
+        return numericId == BorrowRecord.NO_NUMERIC_ID
+                ? recordIds.get(chunk.recordIds[row & CHUNK_MASK])
+                : Long.toString(numericId);
+    }
+
+    long numericId(int row) {
+        Chunk chunk = chunk(row);
+        if (chunk == null) {
+            HistorySegment.Cursor cursor = segment(row).cursor(row);
+            cursor.next();
+            return cursor.numericId();
+        }
+        return chunk.numericIds[row & CHUNK_MASK];
+    }
+
+    /**
+     * Moves every full chunk whose loans were all returned before the given
+     * date into a segment file in the directory, and returns the number of
+     * chunks moved. A chunk with a return newer than an open snapshot is
+     * left for a later call. Rows stay where they are and read the same; only their
+     * storage changes. Safe to call while the library is in use.
+     */
+    public int archive(Path directory, LocalDate returnedBefore) throws IOException {
+        int cutoff = (int) returnedBefore.toEpochDay();
+        synchronized (archiveLock) {
+            Files.createDirectories(directory);
+            int fullChunks = size() >>> CHUNK_BITS;
+            int archived = 0;
+            for (int index = 0; index < fullChunks; index++) {
+                Chunk chunk = chunk(index << CHUNK_BITS);
+                if (chunk == null || !allReturnedBefore(chunk, cutoff, library.epochs())) {
+                    continue;
+                }
+                String[] stringIds = new String[CHUNK_SIZE];
+                for (int slot = 0; slot < CHUNK_SIZE; slot++) {
+                    if (chunk.numericIds[slot] == BorrowRecord.NO_NUMERIC_ID) {
+                        stringIds[slot] = recordIds.get(chunk.recordIds[slot]);
+                    }
+                }
+                HistorySegment segment = HistorySegment.write(
+                        directory.resolve(String.format("history-%08d.seg", index)), index << CHUNK_BITS, CHUNK_SIZE,
+                        chunk.users, chunk.items, chunk.borrowDays, chunk.dueDays, chunk.returnDays,
+                        chunk.numericIds, stringIds);
+                install(index, segment);
+                archived++;
+            }
+            return archived;
+        }
+    }
+
+    /**
+     * Number of rows held in segment files rather than on the heap.
+     */
+    public int getArchivedRowCount() {
+        int rows = 0;
+        for (HistorySegment segment : segments) {
+            rows += segment == null ? 0 : segment.rowCount;
+        }
+        return rows;
+    }
+
+    /**
+     * Visits the committed rows whose borrow date is in [from, to). Archived
+     * segments whose borrow dates all fall outside the range are skipped
+     * without being read.
+     */
+    public void forEachBorrowedBetween(LocalDate from, LocalDate to, RowVisitor visitor) {
+        int fromDay = (int) from.toEpochDay();
+        int toDay = (int) to.toEpochDay();
+        RowVisitor inRange = (row, user, item, borrowDay, dueDay, returnDay) -> {
+            if (borrowDay >= fromDay && borrowDay < toDay) {
+                visitor.visit(row, user, item, borrowDay, dueDay, returnDay);
+            }
+        };
+        int count = size();
+        for (int row = 0; row < count; row = (row & ~CHUNK_MASK) + CHUNK_SIZE) {
+            int end = Math.min(count, (row & ~CHUNK_MASK) + CHUNK_SIZE);
+            if (chunk(row) == null) {
+                HistorySegment segment = segment(row);
+                if (segment != null && segment.mayHaveBorrowedBetween(fromDay, toDay)) {
+                    segment.forEach(row, end, inRange);
+                }
+            } else {
+                forEach(row, end, inRange);
+            }
+        }
+    }
+
+    /**
+     * Whether every loan of the chunk was returned before the cutoff, in an
+     * epoch that every open snapshot already sees.
+     */
+    private static boolean allReturnedBefore(Chunk chunk, int cutoff, EpochGate epochs) {
+        int lastReturnEpoch = 0;
+        for (int slot = 0; slot < CHUNK_SIZE; slot++) {
+            int returnEpoch = (int) INTS.getAcquire(chunk.returnEpochs, slot);
+            int returnDay = chunk.returnDays[slot];
+            if ((int) INTS.getAcquire(chunk.users, slot) == 0 || returnEpoch == 0 || returnDay == NOT_RETURNED
+                    || returnDay >= cutoff) {
+                return false;
+            }
+            lastReturnEpoch = Math.max(lastReturnEpoch, returnEpoch);
+        }
+        // read after the returns: a snapshot pinned since then closed an
+        // epoch no older than any of them
+        return lastReturnEpoch <= epochs.oldestPinned();
+    }
+
+    /**
+     * Publishes a segment and then drops the chunk it replaces.
+     */
+    private void install(int index, HistorySegment segment) {
+        synchronized (installLock) {
+            synchronized (this) {
+                HistorySegment[] currentSegments = segments;
+                HistorySegment[] updatedSegments =
+                        Arrays.copyOf(currentSegments, Math.max(index + 1, currentSegments.length));
+                updatedSegments[index] = segment;
+                segments = updatedSegments;
+                Chunk[] updatedChunks = chunks.clone();
+                updatedChunks[index] = null;
+                chunks = updatedChunks;
+            }
+        }
+    }
+
+    /**
+     * The archived segment holding a row, or null if the row is not archived.
+     */
+    private HistorySegment segment(int row) {
+        HistorySegment[] current = segments;
+        int index = row >>> CHUNK_BITS;
+        return index < current.length ? current[index] : null;
+    }
+
+    /**
+     * The chunk holding a row, or null if the row is reserved but its chunk
+     * is still being allocated.
+     */
+    private Chunk chunk(int row) {
+        Chunk[] current = chunks;
+        int index = row >>> CHUNK_BITS;
+        return index < current.length ? current[index] : null;
+    }
+
+    private Chunk chunkForWrite(int row) {
+        int index = row >>> CHUNK_BITS;
+        Chunk[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            }
+            if (current[index] == null) {
+                current[index] = new Chunk();
+            }
+            chunks = current;
+            return current[index];
+        }
+    }
+
+    private static final class Chunk {
+        final int[] users = new int[CHUNK_SIZE];
+        final int[] items = new int[CHUNK_SIZE];
+        final int[] borrowDays = new int[CHUNK_SIZE];
+        final int[] dueDays = new int[CHUNK_SIZE];
+        final int[] returnDays = new int[CHUNK_SIZE];
+        final int[] recordIds = new int[CHUNK_SIZE];
+        final long[] numericIds = new long[CHUNK_SIZE];
+        final int[] borrowEpochs = new int[CHUNK_SIZE];
+        // 0 while the loan is open
+        final int[] returnEpochs = new int[CHUNK_SIZE];
+    }
+
+    /**
+     * The history as of the end of one epoch. Rows borrowed in a later epoch
+     * are skipped and returns made in a later epoch are hidden, so the view
+     * does not change while the live history does. Records it hands out are
+     * detached copies, never the live open-loan records.
+     */
+    final class View {
+        private final Chunk[] chunks;
+        private final HistorySegment[] segments;
+        private final int rowCount;
+        private final int epoch;
+
+        private View(Chunk[] chunks, HistorySegment[] segments, int rowCount, int epoch) {
+            this.chunks = chunks;
+            this.segments = segments;
+            this.rowCount = rowCount;
+            this.epoch = epoch;
+        }
+
+        int epoch() {
+            return epoch;
+        }
+
+        /**
+         * Upper bound of the row indexes in the view; some below it may be
+         * missing.
+         */
+        int rowLimit() {
+            return rowCount;
+        }
+
+        /**
+         * The row as a detached record, or null if it is not in the view.
+         */
+        BorrowRecord get(int row) {
+            if (row < 0 || row >= rowCount) {
+                return null;
+            }
+            BorrowRecord[] found = new BorrowRecord[1];
+            forEach(row, row + 1, (r, user, item, borrowDay, dueDay, returnDay) -> {
+                long numericId = numericId(r);
+                String recordId = numericId == BorrowRecord.NO_NUMERIC_ID ? recordId(r) : null;
+                found[0] = view(user, item, borrowDay, dueDay, returnDay, numericId, recordId);
+            });
+            return found[0];
+        }
+
+        void forEach(RowVisitor visitor) {
+            forEach(0, rowCount, visitor);
+        }
+
+        void forEach(int from, int to, RowVisitor visitor) {
+            int row = from;
+            while (row < to) {
+                int index = row >>> CHUNK_BITS;
+                Chunk chunk = index < chunks.length ? chunks[index] : null;
+                int end = Math.min(to, (row & ~CHUNK_MASK) + CHUNK_SIZE);
+                if (chunk == null) {
+                    HistorySegment segment = index < segments.length ? segments[index] : null;
+                    // archived only once the view's epoch saw all of its returns
+                    if (segment != null) {
+                        segment.forEach(row, end, visitor);
+                    }
+                    row = end;
+                    continue;
+                }
+                for (int slot = row & CHUNK_MASK; row < end; row++, slot++) {
+                    int user = (int) INTS.getAcquire(chunk.users, slot) - 1;
+                    if (user >= 0 && chunk.borrowEpochs[slot] <= epoch) {
+                        visitor.visit(row, user, chunk.items[slot], chunk.borrowDays[slot], chunk.dueDays[slot],
+                                returnDay(chunk, slot));
+                    }
+                }
+            }
+        }
+
+        IntLongMap aggregateLateFees(int asOfDay, boolean openOnly, ForkJoinPool pool) {
+            return pool.invoke(new LateFeeTask((from, to, cents) -> {
+                RowVisitor charge = (row, user, item, borrowDay, dueDay, returnDay) -> {
+                    int late = DateUtils.daysOverdue(dueDay, returnDay == NOT_RETURNED ? asOfDay : returnDay);
+                    if (late > 0) {
+                        cents.add(user, late * LATE_FEE_CENTS_PER_DAY);
+                    }
+                };
+                if (openOnly) {
+                    forEachOpenBetween(from, to, charge);
+                } else {
+                    forEach(from, to, charge);
+                }
+            }, 0, rowCount));
+        }
+
+        private void forEachOpenBetween(int from, int to, RowVisitor visitor) {
+            forEach(from, to, (row, user, item, borrowDay, dueDay, returnDay) -> {
+                if (returnDay == NOT_RETURNED) {
+                    visitor.visit(row, user, item, borrowDay, dueDay, returnDay);
+                }
+            });
+        }
+
+        private int returnDay(Chunk chunk, int slot) {
+            int returnEpoch = (int) INTS.getAcquire(chunk.returnEpochs, slot);
+            return returnEpoch != 0 && returnEpoch <= epoch ? chunk.returnDays[slot] : NOT_RETURNED;
+        }
+    }
+}
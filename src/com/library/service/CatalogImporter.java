@@ -0,0 +1,483 @@
+package com.library.service;
+
+import com.library.model.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streaming bulk loader for catalog and user files.
+ *
+ * The file is memory-mapped one window at a time and each window is cut into
+ * chunks at line boundaries. Chunks are parsed on a pool of worker threads and
+ * committed in file order through Library.addItems/addUsers, one batch per
+ * chunk, so the first row with a given id wins and later duplicates are
+ * counted and skipped. Only a few chunks per worker are held in memory at
+ * once, whatever the size of the file.
+ *
+ * Each row describes one object. CSV rows are positional:
+ *   book,id,title,year,author,isbn,pages
+ *   magazine,id,title,year,issue,publisher
+ *   student,id,name,email,studentId
+ *   professor,id,name,email,department
+ * Fields may be quoted with double quotes ("" inside quotes is a quote) but
+ * may not contain line breaks. NDJSON rows are flat objects with a "type"
+ * member and the column names above, e.g.
+ *   {"type":"book","id":"B1","title":"Clean Code","year":2008,"author":"Robert C. Martin","isbn":"9780132350884","pages":464}
+ * Blank lines, lines starting with '#' and a CSV header starting with "type"
+ * are ignored. Malformed rows, including rows with a missing or blank id,
+ * are skipped; the result counts them and describes the first few.
+ */
+public final class CatalogImporter {
+    public enum Format {
+        CSV, NDJSON;
+
+        /**
+         * Picks the format from the file extension: .csv, or .ndjson/.jsonl/.json.
+         */
+        public static Format forFile(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")) {
+                return CSV;
+            }
+            if (name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".json")) {
+                return NDJSON;
+            }
+            throw new IllegalArgumentException("Cannot tell the format of " + file + " from its extension");
+        }
+    }
+
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    static final int WINDOW_SIZE = 1 << 28;
+    private static final int MAX_ERROR_MESSAGES = 20;
+
+    private static final Map<String, String[]> COLUMNS = new HashMap<>();
+
+    static {
+        COLUMNS.put("book", new String[] {"id", "title", "year", "author", "isbn", "pages"});
+        COLUMNS.put("magazine", new String[] {"id", "title", "year", "issue", "publisher"});
+        COLUMNS.put("student", new String[] {"id", "name", "email", "studentId"});
+        COLUMNS.put("professor", new String[] {"id", "name", "email", "department"});
+    }
+
+    private final Library library;
+    private final int parallelism;
+    private final int chunkSize;
+
+    public CatalogImporter(Library library) {
+        this(library, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public CatalogImporter(Library library, int parallelism, int chunkSize) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        this.library = library;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+    }
+
+    public ImportResult importFile(Path file) throws IOException {
+        return importFile(file, Format.forFile(file));
+    }
+
+    public ImportResult importFile(Path file, Format format) throws IOException {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, task -> {
+            Thread thread = new Thread(task, "catalog-import-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ImportResult result = new ImportResult();
+        Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = 0;
+            while (windowStart < size) {
+                int length = (int) Math.min(WINDOW_SIZE, size - windowStart);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+                int end = windowStart + length == size ? length : lineEndBefore(window, length);
+                if (end == 0) {
+                    throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at offset " + windowStart);
+                }
+                for (int chunkStart = 0; chunkStart < end; ) {
+                    int chunkEnd = chunkStart + chunkSize >= end ? end : lineEndAfter(window, chunkStart + chunkSize, end);
+                    ByteBuffer slice = window.slice(chunkStart, chunkEnd - chunkStart);
+                    long offset = windowStart + chunkStart;
+                    inFlight.add(workers.submit(() -> parse(slice, offset, format)));
+                    if (inFlight.size() >= 2 * parallelism) {
+                        commit(inFlight.poll(), result);
+                    }
+                    chunkStart = chunkEnd;
+                }
+                windowStart += end;
+            }
+            while (!inFlight.isEmpty()) {
+                commit(inFlight.poll(), result);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return result;
+    }
+
+    private void commit(Future<Chunk> future, ImportResult result) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        int itemsAdded = library.addItems(chunk.items).size();
+        int usersAdded = library.addUsers(chunk.users).size();
+        result.rows += chunk.rows;
+        result.itemsAdded += itemsAdded;
+        result.usersAdded += usersAdded;
+        result.duplicates += chunk.items.size() - itemsAdded + chunk.users.size() - usersAdded;
+        result.errors += chunk.errors;
+        for (String message : chunk.errorMessages) {
+            if (result.errorMessages.size() < MAX_ERROR_MESSAGES) {
+                result.errorMessages.add(message);
+            }
+        }
+    }
+
+    /**
+     * Index just past the last line break before limit, or 0 if there is none.
+     */
+    private static int lineEndBefore(ByteBuffer buffer, int limit) {
+        for (int i = limit - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Index just past the first line break at or after from, or limit.
+     */
+    private static int lineEndAfter(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static Chunk parse(ByteBuffer slice, long offset, Format format) {
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        Chunk chunk = new Chunk();
+        int lineStart = 0;
+        while (lineStart < bytes.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int textEnd = lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            String line = new String(bytes, lineStart, textEnd - lineStart, StandardCharsets.UTF_8);
+            try {
+                parseLine(line, format, chunk);
+            } catch (RuntimeException e) {
+                chunk.errors++;
+                if (chunk.errorMessages.size() < MAX_ERROR_MESSAGES) {
+                    chunk.errorMessages.add("Row at byte " + (offset + lineStart) + ": " + e.getMessage());
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return chunk;
+    }
+
+    private static void parseLine(String line, Format format, Chunk chunk) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return;
+        }
+        String type;
+        String[] values;
+        if (format == Format.CSV) {
+            List<String> fields = splitCsv(line);
+            type = fields.get(0).trim().toLowerCase(Locale.ROOT);
+            if (type.equals("type")) {
+                return;
+            }
+            String[] columns = columnsOf(type);
+            if (fields.size() != columns.length + 1) {
+                throw new IllegalArgumentException("Expected " + (columns.length + 1) + " fields for " + type + " but got " + fields.size());
+            }
+            values = fields.subList(1, fields.size()).toArray(new String[0]);
+        } else {
+            Map<String, String> members = parseJsonObject(trimmed);
+            String rawType = members.get("type");
+            if (rawType == null) {
+                throw new IllegalArgumentException("Missing \"type\"");
+            }
+            type = rawType.toLowerCase(Locale.ROOT);
+            String[] columns = columnsOf(type);
+            values = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = members.get(columns[i]);
+            }
+        }
+        chunk.rows++;
+        if (values[0] == null || values[0].isBlank()) {
+            throw new IllegalArgumentException("Missing id");
+        }
+        switch (type) {
+            case "book":
+                chunk.items.add(new Book(values[0], values[1], parseInt("year", values[2]), values[3], values[4], parseInt("pages", values[5])));
+                break;
+            case "magazine":
+                chunk.items.add(new Magazine(values[0], values[1], parseInt("year", values[2]), parseInt("issue", values[3]), values[4]));
+                break;
+            case "student":
+                chunk.users.add(new Student(values[0], values[1], values[2], values[3]));
+                break;
+            default:
+                chunk.users.add(new Professor(values[0], values[1], values[2], values[3]));
+                break;
+        }
+    }
+
+    private static String[] columnsOf(String type) {
+        String[] columns = COLUMNS.get(type);
+        if (columns == null) {
+            throw new IllegalArgumentException("Unknown row type: " + type);
+        }
+        return columns;
+    }
+
+    private static int parseInt(String column, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + column);
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + column + ": " + value);
+        }
+    }
+
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Parses a flat JSON object whose members are strings, numbers, booleans
+     * or null. Non-string values are returned as their literal text, null as
+     * a missing member.
+     */
+    static Map<String, String> parseJsonObject(String text) {
+        JsonCursor cursor = new JsonCursor(text);
+        Map<String, String> members = new HashMap<>();
+        cursor.expect('{');
+        if (!cursor.consume('}')) {
+            do {
+                String name = cursor.string();
+                cursor.expect(':');
+                String value = cursor.value();
+                if (value != null) {
+                    members.put(name, value);
+                }
+            } while (cursor.consume(','));
+            cursor.expect('}');
+        }
+        cursor.end();
+        return members;
+    }
+
+    private static final class JsonCursor {
+        private final String text;
+        private int pos;
+
+        JsonCursor(String text) {
+            this.text = text;
+        }
+
+        boolean consume(char c) {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("Expected '" + c + "' at column " + (pos + 1));
+            }
+        }
+
+        void end() {
+            skipWhitespace();
+            if (pos != text.length()) {
+                throw new IllegalArgumentException("Unexpected text at column " + (pos + 1));
+            }
+        }
+
+        String value() {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == '"') {
+                return string();
+            }
+            int start = pos;
+            while (pos < text.length() && "-+.0123456789eEtruefalsn".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String literal = text.substring(start, pos);
+            if (literal.isEmpty()) {
+                throw new IllegalArgumentException("Expected a string, number or literal at column " + (start + 1));
+            }
+            return literal.equals("null") ? null : literal;
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos == text.length()) {
+                    break;
+                }
+                char escape = text.charAt(pos++);
+                switch (escape) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw new IllegalArgumentException("Truncated \\u escape");
+                        }
+                        value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: value.append(escape); break;
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string");
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Parsed rows of one chunk, in file order.
+     */
+    private static final class Chunk {
+        final List<LibraryItem> items = new ArrayList<>();
+        final List<User> users = new ArrayList<>();
+        final List<String> errorMessages = new ArrayList<>();
+        int rows;
+        int errors;
+    }
+
+    /**
+     * Totals of one import. Rows counts well-formed rows, whether they were
+     * added or skipped as duplicates.
+     */
+    public static final class ImportResult {
+        private long rows;
+        private long itemsAdded;
+        private long usersAdded;
+        private long duplicates;
+        private long errors;
+        private final List<String> errorMessages = new ArrayList<>();
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getItemsAdded() {
+            return itemsAdded;
+        }
+
+        public long getUsersAdded() {
+            return usersAdded;
+        }
+
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Descriptions of the first malformed rows.
+         */
+        public List<String> getErrorMessages() {
+            return Collections.unmodifiableList(errorMessages);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ImportResult{rows=%d, itemsAdded=%d, usersAdded=%d, duplicates=%d, errors=%d}",
+                    rows, itemsAdded, usersAdded, duplicates, errors);
+        }
+    }
+}
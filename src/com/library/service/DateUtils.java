@@ -1,10 +1,17 @@
 package com.library.service;
 
 import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
 
 /**
  * Utility class for common LocalDate operations used by the library.
+ *
+ * The int overloads work on epoch days (days since 1970-01-01, as returned by
+ * LocalDate.toEpochDay()) and do no calendar arithmetic or allocation. The
+ * bulk kernels scan parallel int[] columns of epoch days, such as those of
+ * BorrowHistory; they are straight-line loops without branches in the body,
+ * which the JIT compiles to SIMD code where the CPU supports it. They read
+ * the arrays with plain loads, so callers pass only rows whose writes they
+ * have already seen.
  */
 public final class DateUtils {
     private DateUtils() {
@@ -17,12 +24,70 @@ public final class DateUtils {
 
     public static long daysBetween(LocalDate start, LocalDate end) {
         if (start == null || end == null) throw new IllegalArgumentException("start and end must not be null");
-        return ChronoUnit.DAYS.between(start, end);
+        return end.toEpochDay() - start.toEpochDay();
+    }
+
+    public static int addDays(int epochDay, int days) {
+        return Math.addExact(epochDay, days);
+    }
+
+    public static int daysBetween(int startDay, int endDay) {
+        return endDay - startDay;
+    }
+
+    public static boolean isOverdue(int dueDay, int asOfDay) {
+        return asOfDay > dueDay;
+    }
+
+    /**
+     * Days late when checked on checkDay, or 0 if not late.
+     */
+    public static int daysOverdue(int dueDay, int checkDay) {
+        return Math.max(checkDay - dueDay, 0);
+    }
+
+    /**
+     * Number of loans in [offset, offset + length) that are still open
+     * (return day equal to notReturned) and overdue as of asOfDay.
+     */
+    public static int countOverdue(int[] dueDays, int[] returnDays, int offset, int length, int asOfDay, int notReturned) {
+        checkRange(dueDays, returnDays, offset, length);
+        int count = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            count += (returnDays[i] == notReturned & dueDays[i] < asOfDay) ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * Total days late of the loans in [offset, offset + length): returned
+     * loans up to their return day, open ones (return day equal to
+     * notReturned) up to asOfDay.
+     */
+    public static long sumDaysOverdue(int[] dueDays, int[] returnDays, int offset, int length, int asOfDay, int notReturned) {
+        checkRange(dueDays, returnDays, offset, length);
+        long total = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int returnDay = returnDays[i];
+            int checkDay = returnDay == notReturned ? asOfDay : returnDay;
+            total += Math.max(checkDay - dueDays[i], 0);
+        }
+        return total;
+    }
+
+    private static void checkRange(int[] dueDays, int[] returnDays, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > dueDays.length || offset + length > returnDays.length) {
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + (offset + length) + ") out of bounds");
+        }
     }
 
     public static boolean isOverdue(LocalDate dueDate) {
-        if (dueDate == null) throw new IllegalArgumentException("dueDate must not be null");
-        return LocalDate.now().isAfter(dueDate);
+        return isOverdue(dueDate, LocalDate.now());
+    }
+
+    public static boolean isOverdue(LocalDate dueDate, LocalDate asOf) {
+        if (dueDate == null || asOf == null) throw new IllegalArgumentException("dueDate and asOf must not be null");
+        return asOf.isAfter(dueDate);
     }
 
     public static String chainStep7(String info) {
@@ -0,0 +1,93 @@
+package com.library.service;
+
+import com.library.model.BorrowRecord;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Open loans ordered by due date. Everything overdue as of a date is the
+ * head of the map below that date, so an overdue query only touches the
+ * overdue loans and never the returned history.
+ *
+ * Safe for concurrent use. Adds and removes lock only the bucket of their
+ * due day; a bucket that becomes empty is retired and unlinked so that
+ * readers never walk days without open loans.
+ */
+final class DueDateIndex {
+    private final NavigableMap<LocalDate, Bucket> byDueDate = new ConcurrentSkipListMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    void add(BorrowRecord record) {
+        LocalDate dueDate = record.getDueDate();
+        while (true) {
+            Bucket bucket = byDueDate.computeIfAbsent(dueDate, d -> new Bucket());
+            synchronized (bucket) {
+                if (!bucket.retired) {
+                    if (bucket.records.add(record)) {
+                        size.incrementAndGet();
+                    }
+                    return;
+                }
+            }
+            byDueDate.remove(dueDate, bucket);
+        }
+    }
+
+    void remove(BorrowRecord record) {
+        LocalDate dueDate = record.getDueDate();
+        Bucket bucket = byDueDate.get(dueDate);
+        if (bucket == null) {
+            return;
+        }
+        synchronized (bucket) {
+            if (bucket.records.remove(record)) {
+                size.decrementAndGet();
+                if (bucket.records.isEmpty()) {
+                    bucket.retired = true;
+                    byDueDate.remove(dueDate, bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open loans whose due date is strictly before {@code asOf}, earliest due first.
+     */
+    List<BorrowRecord> overdueAsOf(LocalDate asOf) {
+        List<BorrowRecord> overdue = new ArrayList<>();
+        for (Bucket bucket : byDueDate.headMap(asOf, false).values()) {
+            for (BorrowRecord record : bucket.records) {
+                overdue.add(record);
+            }
+        }
+        return overdue;
+    }
+
+    /**
+     * Open loans whose due date is in [from, to), earliest due first.
+     */
+    List<BorrowRecord> dueBetween(LocalDate from, LocalDate to) {
+        List<BorrowRecord> due = new ArrayList<>();
+        if (from.isBefore(to)) {
+            for (Bucket bucket : byDueDate.subMap(from, true, to, false).values()) {
+                due.addAll(bucket.records);
+            }
+        }
+        return due;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private static final class Bucket {
+        final Set<BorrowRecord> records = ConcurrentHashMap.newKeySet();
+        boolean retired;
+    }
+}
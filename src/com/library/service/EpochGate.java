@@ -0,0 +1,134 @@
+package com.library.service;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Epochs for the MVCC snapshots of a Library, in the manner of an RCU grace
+ * period.
+ *
+ * Writers bracket each change with enter and exit, on the same thread, and
+ * stamp what they write with the epoch enter returned; epochs start at 1, so
+ * 0 can mean "none". advance closes the current epoch: it moves writers on to
+ * the next one and waits until the last writer still inside
+ * the closed epoch has left, after which everything stamped with it or an
+ * earlier epoch is complete and nothing will be stamped with it again.
+ * Writers never wait; advance waits only for changes already in progress.
+ *
+ * Writers in flight are counted per parity of their epoch, on striped cells
+ * so that writers on different threads rarely touch the same cache line.
+ * A writer increments and decrements the same cell, so a sum taken while
+ * others come and go never under-counts a writer that is inside.
+ *
+ * A reader that keeps using a closed epoch pins it, and oldestPinned tells
+ * what may not be rewritten as if it happened earlier. A pin is held weakly
+ * by its owner, so an owner that is dropped without unpinning releases it
+ * once collected.
+ */
+final class EpochGate {
+    private static final int STRIPES = 16;
+    // one cell per 128-byte line, two parities
+    private static final int PAD = 16;
+
+    private final AtomicLongArray inFlight = new AtomicLongArray(2 * STRIPES * PAD);
+    private volatile int epoch = 1;
+    // guarded by this
+    private final List<Pin> pins = new ArrayList<>();
+
+    int current() {
+        return epoch;
+    }
+
+    /**
+     * Registers a writer and returns the epoch to stamp its changes with.
+     */
+    int enter() {
+        int stripe = stripe();
+        while (true) {
+            int e = epoch;
+            int cell = cell(e, stripe);
+            inFlight.incrementAndGet(cell);
+            if (epoch == e) {
+                return e;
+            }
+            // advance ran in between and may not have seen this writer
+            inFlight.decrementAndGet(cell);
+        }
+    }
+
+    void exit(int enteredEpoch) {
+        inFlight.decrementAndGet(cell(enteredEpoch, stripe()));
+    }
+
+    /**
+     * Closes the current epoch, waits for its writers to finish and returns it.
+     */
+    synchronized int advance() {
+        int closed = epoch;
+        if (closed == Integer.MAX_VALUE) {
+            throw new IllegalStateException("No epochs left");
+        }
+        epoch = closed + 1;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int cell = cell(closed, stripe);
+            for (int spins = 0; inFlight.get(cell) != 0; spins++) {
+                if (spins < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Closes the current epoch as advance does and pins it for owner until
+     * unpin is called or owner is collected.
+     */
+    synchronized int pin(Object owner) {
+        int closed = advance();
+        pins.add(new Pin(owner, closed));
+        return closed;
+    }
+
+    synchronized void unpin(Object owner) {
+        pins.removeIf(pin -> pin.get() == null || pin.get() == owner);
+    }
+
+    /**
+     * The oldest epoch still pinned, or Integer.MAX_VALUE if none is.
+     */
+    synchronized int oldestPinned() {
+        int oldest = Integer.MAX_VALUE;
+        for (Iterator<Pin> it = pins.iterator(); it.hasNext(); ) {
+            Pin pin = it.next();
+            if (pin.get() == null) {
+                it.remove();
+            } else {
+                oldest = Math.min(oldest, pin.epoch);
+            }
+        }
+        return oldest;
+    }
+
+    private static int cell(int epoch, int stripe) {
+        return ((epoch & 1) * STRIPES + stripe) * PAD;
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    }
+
+    private static final class Pin extends WeakReference<Object> {
+        final int epoch;
+
+        Pin(Object owner, int epoch) {
+            super(owner);
+            this.epoch = epoch;
+        }
+    }
+}
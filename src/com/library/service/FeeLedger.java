@@ -0,0 +1,161 @@
+package com.library.service;
+
+import com.library.model.User;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Late fees per user, kept up to date as loans become overdue and are
+ * returned instead of being recomputed from the history.
+ *
+ * The ledger has a current day. For each user it keeps the number of open
+ * loans that are overdue on that day and the sum of their due days, so the
+ * fee accruing on them is LATE_FEE_PER_DAY * (count * day - sum) and reading
+ * it is O(1). Advancing the day therefore needs no per-user update at all;
+ * advanceTo only brings in the loans that fall due in between, found through
+ * the due-date index. Returning a loan takes it out of the accruing set and
+ * adds its final fee to the user's charged total.
+ *
+ * Library drives the ledger: it reports each loan once when it becomes
+ * overdue and once when it is returned.
+ */
+public final class FeeLedger {
+    private final Library library;
+    private final Map<Integer, Account> accounts = new ConcurrentHashMap<>();
+    private volatile int day;
+
+    FeeLedger(Library library, LocalDate day) {
+        this.library = library;
+        this.day = (int) day.toEpochDay();
+    }
+
+    public LocalDate getDay() {
+        return LocalDate.ofEpochDay(day);
+    }
+
+    /**
+     * Moves the ledger to a later day. Loans due before that day start to
+     * accrue; the work is proportional to the loans that fall due between the
+     * old and the new day.
+     * @throws IllegalArgumentException if newDay is before the current day
+     */
+    public synchronized void advanceTo(LocalDate newDay) {
+        int target = (int) newDay.toEpochDay();
+        if (target < day) {
+            throw new IllegalArgumentException("Ledger is at " + getDay() + " and cannot go back to " + newDay);
+        }
+        int previous = day;
+        // publish the new day before looking for loans, so that a loan lent
+        // concurrently is either seen here or sees the new day itself
+        day = target;
+        library.loansFallenDue(LocalDate.ofEpochDay(previous), newDay);
+    }
+
+    /**
+     * Fee accruing on the user's open overdue loans as of the ledger day.
+     */
+    public long getAccruingCents(User user) {
+        Account account = account(user);
+        return account == null ? 0 : account.accruingCents(day);
+    }
+
+    /**
+     * Final fees of the user's loans that were returned late.
+     */
+    public long getChargedCents(User user) {
+        Account account = account(user);
+        return account == null ? 0 : account.chargedCents();
+    }
+
+    /**
+     * Everything the user owes as of the ledger day: charged plus accruing.
+     */
+    public long getOwedCents(User user) {
+        Account account = account(user);
+        return account == null ? 0 : account.owedCents(day);
+    }
+
+    public int getOverdueLoanCount(User user) {
+        Account account = account(user);
+        return account == null ? 0 : account.overdueLoans();
+    }
+
+    int dayAsEpochDay() {
+        return day;
+    }
+
+    void loanOverdue(int userOrdinal, int dueDay) {
+        accounts.computeIfAbsent(userOrdinal, u -> new Account()).addOverdue(dueDay);
+    }
+
+    /**
+     * Charges the final fee of a returned loan, taking it out of the accruing
+     * set if it was counted there.
+     */
+    void loanReturned(int userOrdinal, int dueDay, int returnDay, boolean wasOverdue) {
+        long fee = DateUtils.daysOverdue(dueDay, returnDay) * BorrowHistory.LATE_FEE_CENTS_PER_DAY;
+        if (wasOverdue || fee > 0) {
+            accounts.computeIfAbsent(userOrdinal, u -> new Account()).close(dueDay, wasOverdue, fee);
+        }
+    }
+
+    long chargedCents(int userOrdinal) {
+        Account account = accounts.get(userOrdinal);
+        return account == null ? 0 : account.chargedCents();
+    }
+
+    /**
+     * Sets a user's charged total as it was saved. Used when loading a
+     * snapshot, before any loan is lent or returned.
+     */
+    void restoreCharged(int userOrdinal, long cents) {
+        if (cents != 0) {
+            accounts.computeIfAbsent(userOrdinal, u -> new Account()).charge(cents);
+        }
+    }
+
+    private Account account(User user) {
+        int ordinal = library.ordinalOf(user);
+        return ordinal < 0 ? null : accounts.get(ordinal);
+    }
+
+    private static final class Account {
+        private int overdueLoans;
+        private long dueDaySum;
+        private long chargedCents;
+
+        synchronized void addOverdue(int dueDay) {
+            overdueLoans++;
+            dueDaySum += dueDay;
+        }
+
+        synchronized void close(int dueDay, boolean wasOverdue, long fee) {
+            if (wasOverdue) {
+                overdueLoans--;
+                dueDaySum -= dueDay;
+            }
+            chargedCents += fee;
+        }
+
+        synchronized void charge(long fee) {
+            chargedCents += fee;
+        }
+
+        synchronized long accruingCents(int day) {
+            return ((long) overdueLoans * day - dueDaySum) * BorrowHistory.LATE_FEE_CENTS_PER_DAY;
+        }
+
+        synchronized long chargedCents() {
+            return chargedCents;
+        }
+
+        synchronized long owedCents(int day) {
+            return chargedCents + accruingCents(day);
+        }
+
+        synchronized int overdueLoans() {
+            return overdueLoans;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.library.service;
+
+import com.library.model.User;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Late fees per user, as computed by Library.aggregateOverdueFees or
+ * aggregateLateFees. Stored as two parallel arrays sorted by user ordinal:
+ * one int and one long per user who owes something.
+ */
+public final class FeeSummary {
+    private final Library library;
+    private final int[] userOrdinals;
+    private final long[] cents;
+    private final long totalCents;
+
+    FeeSummary(Library library, IntLongMap centsByUser) {
+        this.library = library;
+        this.userOrdinals = centsByUser.sortedKeys();
+        this.cents = new long[userOrdinals.length];
+        long total = 0;
+        for (int i = 0; i < userOrdinals.length; i++) {
+            cents[i] = centsByUser.get(userOrdinals[i]);
+            total += cents[i];
+        }
+        this.totalCents = total;
+    }
+
+    /**
+     * Number of users who owe a fee.
+     */
+    public int size() {
+        return userOrdinals.length;
+    }
+
+    public User getUser(int index) {
+        return library.getUser(userOrdinals[index]);
+    }
+
+    public long getCents(int index) {
+        return cents[index];
+    }
+
+    /**
+     * Fee owed by the given user in cents, 0 if none.
+     */
+    public long getCents(User user) {
+        int ordinal = library.ordinalOf(user);
+        int index = ordinal < 0 ? -1 : Arrays.binarySearch(userOrdinals, ordinal);
+        return index < 0 ? 0 : cents[index];
+    }
+
+    public long getTotalCents() {
+        return totalCents;
+    }
+
+    /**
+     * The fees as processOverdueItems returns them, in user order.
+     */
+    public Map<User, Double> toMap() {
+        Map<User, Double> fees = new LinkedHashMap<>();
+        for (int i = 0; i < userOrdinals.length; i++) {
+            fees.put(getUser(i), cents[i] / 100.0);
+        }
+        return fees;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FeeSummary{users=%d, totalCents=%d}", userOrdinals.length, totalCents);
+    }
+}
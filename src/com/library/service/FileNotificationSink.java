@@ -0,0 +1,37 @@
+package com.library.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends the message of every digest to a local text file, separated by
+ * blank lines. Batches are written whole, one at a time.
+ */
+public final class FileNotificationSink implements NotificationSink {
+    private final Path file;
+
+    public FileNotificationSink(Path file) {
+        if (file == null) throw new IllegalArgumentException("file must not be null");
+        this.file = file;
+    }
+
+    @Override
+    public synchronized void send(List<OverdueDigest> batch) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (OverdueDigest digest : batch) {
+                out.write(digest.getMessage());
+                out.newLine();
+            }
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,316 @@
+package com.library.service;
+
+import com.library.model.BorrowRecord;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An immutable, memory-mapped file holding a run of returned history rows,
+ * in row order. BorrowHistory moves old chunks here so that they no longer
+ * take heap.
+ *
+ * Rows are stored in blocks of BLOCK_ROWS with variable-length integers:
+ * user and item ordinals as they are, the borrow day as a delta from the
+ * previous row's, due and return days relative to the borrow and due day,
+ * and numeric record ids as deltas from the previous numeric id. String
+ * record ids go to a string table at the end of the file. The header holds
+ * the offset of every block, so a single row is found by decoding at most
+ * one block, and a summary of the rows (borrow and return day ranges and
+ * total days late) that lets scans skip the segment without reading it.
+ *
+ * Layout: magic, version, first row, row count, min/max borrow day, min/max
+ * return day, late days (long), block count, string count, block offsets,
+ * string offsets, blocks, strings. Segments are derived data: the journal
+ * and its snapshots hold the full history, so a segment file is never read
+ * back after a restart.
+ */
+final class HistorySegment {
+    private static final int MAGIC = 0x4C424853;
+    private static final int VERSION = 1;
+    static final int BLOCK_ROWS = 256;
+
+    final int firstRow;
+    final int rowCount;
+    final int minBorrowDay;
+    final int maxBorrowDay;
+    final int minReturnDay;
+    final int maxReturnDay;
+    /** Sum over the rows of the days each loan was returned late. */
+    final long lateDays;
+    private final MappedByteBuffer data;
+    private final int[] blockOffsets;
+    private final int[] stringOffsets;
+
+    private HistorySegment(MappedByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Not a history segment");
+        }
+        firstRow = data.getInt(8);
+        rowCount = data.getInt(12);
+        minBorrowDay = data.getInt(16);
+        maxBorrowDay = data.getInt(20);
+        minReturnDay = data.getInt(24);
+        maxReturnDay = data.getInt(28);
+        lateDays = data.getLong(32);
+        blockOffsets = new int[data.getInt(40)];
+        stringOffsets = new int[data.getInt(44)];
+        int position = 48;
+        for (int i = 0; i < blockOffsets.length; i++, position += 4) {
+            blockOffsets[i] = data.getInt(position);
+        }
+        for (int i = 0; i < stringOffsets.length; i++, position += 4) {
+            stringOffsets[i] = data.getInt(position);
+        }
+    }
+
+    /**
+     * Writes rows [0, rowCount) of the given columns to a new segment file
+     * and maps it. users holds ordinal + 1 as BorrowHistory stores it;
+     * stringIds holds the record id of rows without a numeric id.
+     */
+    static HistorySegment write(Path file, int firstRow, int rowCount, int[] users, int[] items, int[] borrowDays,
+                                int[] dueDays, int[] returnDays, long[] numericIds, String[] stringIds) throws IOException {
+        Encoder blocks = new Encoder(rowCount * 12);
+        Encoder strings = new Encoder(64);
+        int[] blockOffsets = new int[(rowCount + BLOCK_ROWS - 1) / BLOCK_ROWS];
+        int[] stringOffsets = new int[rowCount];
+        int stringCount = 0;
+        int minBorrow = Integer.MAX_VALUE;
+        int maxBorrow = Integer.MIN_VALUE;
+        int minReturn = Integer.MAX_VALUE;
+        int maxReturn = Integer.MIN_VALUE;
+        long late = 0;
+        int previousBorrow = 0;
+        long previousId = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (row % BLOCK_ROWS == 0) {
+                blockOffsets[row / BLOCK_ROWS] = blocks.size();
+                previousBorrow = 0;
+                previousId = 0;
+            }
+            int borrowDay = borrowDays[row];
+            int dueDay = dueDays[row];
+            int returnDay = returnDays[row];
+            if (returnDay == BorrowHistory.NOT_RETURNED) {
+                throw new IllegalArgumentException("Row " + (firstRow + row) + " is still open");
+            }
+            boolean numeric = numericIds[row] != BorrowRecord.NO_NUMERIC_ID;
+            blocks.writeVarInt(users[row] - 1);
+            blocks.writeVarInt(items[row]);
+            blocks.writeVarLong(zigzag(borrowDay - previousBorrow));
+            blocks.writeVarLong(zigzag(dueDay - borrowDay));
+            blocks.writeVarLong(zigzag((long) returnDay - dueDay) << 1 | (numeric ? 0 : 1));
+            if (numeric) {
+                blocks.writeVarLong(zigzag(numericIds[row] - previousId));
+                previousId = numericIds[row];
+            } else {
+                String id = stringIds[row];
+                stringOffsets[stringCount] = strings.size();
+                if (id == null) {
+                    strings.writeVarInt(0);
+                } else {
+                    byte[] utf8 = id.getBytes(StandardCharsets.UTF_8);
+                    strings.writeVarInt(utf8.length + 1);
+                    strings.write(utf8, 0, utf8.length);
+                }
+                blocks.writeVarInt(stringCount++);
+            }
+            previousBorrow = borrowDay;
+            minBorrow = Math.min(minBorrow, borrowDay);
+            maxBorrow = Math.max(maxBorrow, borrowDay);
+            minReturn = Math.min(minReturn, returnDay);
+            maxReturn = Math.max(maxReturn, returnDay);
+            late += DateUtils.daysOverdue(dueDay, returnDay);
+        }
+
+        int headerSize = 48 + 4 * (blockOffsets.length + stringCount);
+        int blocksStart = headerSize;
+        int stringsStart = blocksStart + blocks.size();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(firstRow);
+            out.writeInt(rowCount);
+            out.writeInt(minBorrow);
+            out.writeInt(maxBorrow);
+            out.writeInt(minReturn);
+            out.writeInt(maxReturn);
+            out.writeLong(late);
+            out.writeInt(blockOffsets.length);
+            out.writeInt(stringCount);
+            for (int offset : blockOffsets) {
+                out.writeInt(blocksStart + offset);
+            }
+            for (int i = 0; i < stringCount; i++) {
+                out.writeInt(stringsStart + stringOffsets[i]);
+            }
+            blocks.writeTo(out);
+            strings.writeTo(out);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    private static HistorySegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new HistorySegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Whether a row borrowed in [fromDay, toDay) can be in this segment.
+     */
+    boolean mayHaveBorrowedBetween(int fromDay, int toDay) {
+        return maxBorrowDay >= fromDay && minBorrowDay < toDay;
+    }
+
+    /**
+     * A cursor positioned so that the next call to next() reads the given row.
+     */
+    Cursor cursor(int row) {
+        int index = row - firstRow;
+        if (index < 0 || index >= rowCount) throw new IndexOutOfBoundsException("Row " + row + " is not in this segment");
+        Cursor cursor = new Cursor(index - index % BLOCK_ROWS);
+        while (cursor.index < index) {
+            cursor.next();
+        }
+        return cursor;
+    }
+
+    void forEach(int from, int to, BorrowHistory.RowVisitor visitor) {
+        int end = Math.min(to, firstRow + rowCount);
+        if (from >= end) {
+            return;
+        }
+        Cursor cursor = cursor(Math.max(from, firstRow));
+        while (cursor.index < end - firstRow) {
+            cursor.next();
+            visitor.visit(cursor.row(), cursor.user, cursor.item, cursor.borrowDay, cursor.dueDay, cursor.returnDay);
+        }
+    }
+
+    /**
+     * Reads rows in order, decoding from the start of a block.
+     */
+    final class Cursor {
+        private int index;
+        private int position;
+        int user;
+        int item;
+        int borrowDay;
+        int dueDay;
+        int returnDay;
+        long numericId;
+        int stringIndex;
+
+        private Cursor(int blockStart) {
+            this.index = blockStart;
+            this.position = blockOffsets[blockStart / BLOCK_ROWS];
+        }
+
+        /** The row read by the last call to next(). */
+        int row() {
+            return firstRow + index - 1;
+        }
+
+        void next() {
+            if (index % BLOCK_ROWS == 0) {
+                position = blockOffsets[index / BLOCK_ROWS];
+                borrowDay = 0;
+                numericId = 0;
+            }
+            user = (int) readVarLong();
+            item = (int) readVarLong();
+            borrowDay += (int) unzigzag(readVarLong());
+            dueDay = borrowDay + (int) unzigzag(readVarLong());
+            long returnAndKind = readVarLong();
+            returnDay = dueDay + (int) unzigzag(returnAndKind >>> 1);
+            if ((returnAndKind & 1) == 0) {
+                numericId += unzigzag(readVarLong());
+                stringIndex = -1;
+            } else {
+                stringIndex = (int) readVarLong();
+            }
+            index++;
+        }
+
+        /** The numeric id of the row read last, or NO_NUMERIC_ID. */
+        long numericId() {
+            return stringIndex < 0 ? numericId : BorrowRecord.NO_NUMERIC_ID;
+        }
+
+        /** The String id of the row read last, or null if it has a numeric id. */
+        String stringId() {
+            if (stringIndex < 0) {
+                return null;
+            }
+            int at = stringOffsets[stringIndex];
+            long header = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(at++);
+                header |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (header == 0) {
+                return null;
+            }
+            byte[] utf8 = new byte[(int) header - 1];
+            data.get(at, utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(position++);
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Growable byte buffer with variable-length integer writes.
+     */
+    private static final class Encoder extends ByteArrayOutputStream {
+        Encoder(int capacity) {
+            super(capacity);
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.library.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps every digest it is sent, in arrival order. Meant for demos and tests.
+ */
+public final class InMemoryNotificationSink implements NotificationSink {
+    private final List<OverdueDigest> digests = new ArrayList<>();
+    private int batches;
+
+    @Override
+    public synchronized void send(List<OverdueDigest> batch) {
+        digests.addAll(batch);
+        batches++;
+    }
+
+    public synchronized List<OverdueDigest> getDigests() {
+        return new ArrayList<>(digests);
+    }
+
+    public synchronized int getBatchCount() {
+        return batches;
+    }
+
+    public synchronized void clear() {
+        digests.clear();
+        batches = 0;
+    }
+}
@@ -0,0 +1,535 @@
+package com.library.service;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative ints in the style of a Roaring bitmap.
+ * Values are grouped by their high 16 bits; each group is a container that
+ * holds the low 16 bits either as a sorted char array, while it has at most
+ * ARRAY_MAX values, or as a 65536-bit bitmap. Sparse sets cost two bytes per
+ * value and dense ones one bit, and set operations work a container, and for
+ * bitmaps a 64-bit word, at a time.
+ *
+ * The cardinality is kept up to date, so size() is O(1). Not thread-safe;
+ * owners guard it with their own lock.
+ */
+final class IntBitmap {
+    static final int ARRAY_MAX = 4096;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int containerCount;
+    private int cardinality;
+
+    boolean add(int value) {
+        if (value < 0) throw new IllegalArgumentException("value must not be negative: " + value);
+        char high = (char) (value >>> 16);
+        int index = find(high);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, high, new ArrayContainer());
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        containers[index] = container.add((char) value);
+        if (containers[index].cardinality() == before) {
+            return false;
+        }
+        cardinality++;
+        return true;
+    }
+
+    boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = find((char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        Container updated = container.remove((char) value);
+        if (updated.cardinality() == before) {
+            return false;
+        }
+        cardinality--;
+        if (updated.cardinality() == 0) {
+            removeContainer(index);
+        } else {
+            containers[index] = updated;
+        }
+        return true;
+    }
+
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = find((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    int size() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * The smallest value in the set that is at least from, or -1 if there is none.
+     */
+    int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        char high = (char) (from >>> 16);
+        int index = find(high);
+        if (index >= 0) {
+            int low = containers[index].nextSetBit((char) from);
+            if (low >= 0) {
+                return high << 16 | low;
+            }
+            index++;
+        } else {
+            index = -index - 1;
+        }
+        return index < containerCount ? keys[index] << 16 | containers[index].nextSetBit((char) 0) : -1;
+    }
+
+    /**
+     * The values in ascending order.
+     */
+    int[] toArray() {
+        int[] values = new int[cardinality];
+        int n = 0;
+        for (int i = 0; i < containerCount; i++) {
+            n = containers[i].copyTo(values, n, keys[i] << 16);
+        }
+        return values;
+    }
+
+    IntBitmap copy() {
+        IntBitmap copy = new IntBitmap();
+        copy.keys = Arrays.copyOf(keys, Math.max(4, containerCount));
+        copy.containers = new Container[copy.keys.length];
+        for (int i = 0; i < containerCount; i++) {
+            copy.containers[i] = containers[i].copy();
+        }
+        copy.containerCount = containerCount;
+        copy.cardinality = cardinality;
+        return copy;
+    }
+
+    /**
+     * Number of values in both this set and other, without building the
+     * intersection.
+     */
+    int andCardinality(IntBitmap other) {
+        int count = 0;
+        for (int i = 0, j = 0; i < containerCount && j < other.containerCount; ) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                count += containers[i].andCardinality(other.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    static IntBitmap and(IntBitmap a, IntBitmap b) {
+        IntBitmap result = new IntBitmap();
+        for (int i = 0, j = 0; i < a.containerCount && j < b.containerCount; ) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Container both = a.containers[i].and(b.containers[j]);
+                if (both.cardinality() > 0) {
+                    result.appendContainer(a.keys[i], both);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds every value of other to this set.
+     */
+    void or(IntBitmap other) {
+        for (int j = 0; j < other.containerCount; j++) {
+            int index = find(other.keys[j]);
+            if (index < 0) {
+                insertContainer(-index - 1, other.keys[j], other.containers[j].copy());
+                cardinality += other.containers[j].cardinality();
+            } else {
+                int before = containers[index].cardinality();
+                containers[index] = containers[index].orInPlace(other.containers[j]);
+                cardinality += containers[index].cardinality() - before;
+            }
+        }
+    }
+
+    static IntBitmap or(IntBitmap a, IntBitmap b) {
+        IntBitmap result = new IntBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.containerCount || j < b.containerCount) {
+            if (j == b.containerCount || (i < a.containerCount && a.keys[i] < b.keys[j])) {
+                result.appendContainer(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i == a.containerCount || a.keys[i] > b.keys[j]) {
+                result.appendContainer(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.appendContainer(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private int find(char high) {
+        return Arrays.binarySearch(keys, 0, containerCount, high);
+    }
+
+    private void insertContainer(int index, char high, Container container) {
+        if (containerCount == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            containers = Arrays.copyOf(containers, containers.length * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, containerCount - index);
+        System.arraycopy(containers, index, containers, index + 1, containerCount - index);
+        keys[index] = high;
+        containers[index] = container;
+        containerCount++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, containerCount - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, containerCount - index - 1);
+        containers[--containerCount] = null;
+    }
+
+    private void appendContainer(char high, Container container) {
+        insertContainer(containerCount, high, container);
+        cardinality += container.cardinality();
+    }
+
+    /**
+     * The low 16 bits of the values of one group. Mutators return the
+     * container that now holds the values, which is a different kind when
+     * the cardinality crosses a threshold.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        abstract Container add(char low);
+
+        abstract Container remove(char low);
+
+        /** The smallest value at least low, or -1. */
+        abstract int nextSetBit(char low);
+
+        abstract int copyTo(int[] target, int offset, int high);
+
+        abstract Container copy();
+
+        abstract long[] toWords();
+
+        int andCardinality(Container other) {
+            if (this instanceof ArrayContainer || other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) (this instanceof ArrayContainer ? this : other);
+                Container probe = array == this ? other : this;
+                int count = 0;
+                for (int i = 0; i < array.size; i++) {
+                    if (probe.contains(array.values[i])) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+            long[] a = ((BitmapContainer) this).words;
+            long[] b = ((BitmapContainer) other).words;
+            int count = 0;
+            for (int w = 0; w < a.length; w++) {
+                count += Long.bitCount(a[w] & b[w]);
+            }
+            return count;
+        }
+
+        Container and(Container other) {
+            if (this instanceof ArrayContainer || other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) (this instanceof ArrayContainer ? this : other);
+                Container probe = array == this ? other : this;
+                ArrayContainer result = new ArrayContainer(array.size);
+                for (int i = 0; i < array.size; i++) {
+                    if (probe.contains(array.values[i])) {
+                        result.values[result.size++] = array.values[i];
+                    }
+                }
+                return result;
+            }
+            long[] a = ((BitmapContainer) this).words;
+            long[] b = ((BitmapContainer) other).words;
+            long[] words = new long[BitmapContainer.WORDS];
+            for (int w = 0; w < words.length; w++) {
+                words[w] = a[w] & b[w];
+            }
+            return BitmapContainer.of(words);
+        }
+
+        Container or(Container other) {
+            if (this instanceof ArrayContainer && other instanceof ArrayContainer
+                    && cardinality() + other.cardinality() <= ARRAY_MAX) {
+                ArrayContainer a = (ArrayContainer) this;
+                ArrayContainer b = (ArrayContainer) other;
+                ArrayContainer result = new ArrayContainer(a.size + b.size);
+                int i = 0;
+                int j = 0;
+                while (i < a.size || j < b.size) {
+                    char next = j == b.size || (i < a.size && a.values[i] <= b.values[j]) ? a.values[i] : b.values[j];
+                    if (i < a.size && a.values[i] == next) i++;
+                    if (j < b.size && b.values[j] == next) j++;
+                    result.values[result.size++] = next;
+                }
+                return result;
+            }
+            long[] words = toWords();
+            long[] b = other.toWords();
+            for (int w = 0; w < words.length; w++) {
+                words[w] |= b[w];
+            }
+            return BitmapContainer.of(words);
+        }
+
+        /**
+         * As or, but a bitmap container absorbs the other values itself.
+         */
+        Container orInPlace(Container other) {
+            return or(other);
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] values;
+        int size;
+
+        ArrayContainer() {
+            this(4);
+        }
+
+        ArrayContainer(int capacity) {
+            values = new char[Math.max(4, capacity)];
+        }
+
+        @Override
+        int cardinality() {
+            return size;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int pos = Arrays.binarySearch(values, 0, size, low);
+            if (pos >= 0) {
+                return this;
+            }
+            if (size == ARRAY_MAX) {
+                return new BitmapContainer(this).add(low);
+            }
+            pos = -pos - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length * 2));
+            }
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = low;
+            size++;
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            int pos = Arrays.binarySearch(values, 0, size, low);
+            if (pos >= 0) {
+                System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+                size--;
+            }
+            return this;
+        }
+
+        @Override
+        int nextSetBit(char low) {
+            int pos = Arrays.binarySearch(values, 0, size, low);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            return pos < size ? values[pos] : -1;
+        }
+
+        @Override
+        int copyTo(int[] target, int offset, int high) {
+            for (int i = 0; i < size; i++) {
+                target[offset++] = high | values[i];
+            }
+            return offset;
+        }
+
+        @Override
+        Container copy() {
+            ArrayContainer copy = new ArrayContainer(size);
+            System.arraycopy(values, 0, copy.values, 0, size);
+            copy.size = size;
+            return copy;
+        }
+
+        @Override
+        long[] toWords() {
+            long[] words = new long[BitmapContainer.WORDS];
+            for (int i = 0; i < size; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return words;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        static final int WORDS = 1 << 10;
+
+        final long[] words;
+        int cardinality;
+
+        BitmapContainer(ArrayContainer array) {
+            words = array.toWords();
+            cardinality = array.size;
+        }
+
+        private BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        /**
+         * A container for the given bits, as an array container if they are few.
+         */
+        static Container of(long[] words) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality > ARRAY_MAX) {
+                return new BitmapContainer(words, cardinality);
+            }
+            ArrayContainer array = new ArrayContainer(cardinality);
+            for (int w = 0; w < words.length; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    array.values[array.size++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return array;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & 1L << low) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            long before = words[low >>> 6];
+            words[low >>> 6] = before | 1L << low;
+            if (words[low >>> 6] != before) {
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            long before = words[low >>> 6];
+            words[low >>> 6] = before & ~(1L << low);
+            if (words[low >>> 6] != before) {
+                cardinality--;
+                // fall back to an array well below the threshold, so that a
+                // value going in and out at the boundary does not convert each time
+                if (cardinality <= ARRAY_MAX / 2) {
+                    return of(words);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        int nextSetBit(char low) {
+            int w = low >>> 6;
+            long word = words[w] & (-1L << low);
+            while (word == 0) {
+                if (++w == WORDS) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return w << 6 | Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        int copyTo(int[] target, int offset, int high) {
+            for (int w = 0; w < WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    target[offset++] = high | w << 6 | Long.numberOfTrailingZeros(word);
+                }
+            }
+            return offset;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        long[] toWords() {
+            return words.clone();
+        }
+
+        @Override
+        Container orInPlace(Container other) {
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.size; i++) {
+                    add(array.values[i]);
+                }
+            } else {
+                long[] b = ((BitmapContainer) other).words;
+                int total = 0;
+                for (int w = 0; w < WORDS; w++) {
+                    words[w] |= b[w];
+                    total += Long.bitCount(words[w]);
+                }
+                cardinality = total;
+            }
+            return this;
+        }
+    }
+}
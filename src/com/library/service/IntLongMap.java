@@ -0,0 +1,106 @@
+package com.library.service;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative int keys to long sums, with
+ * linear probing over parallel primitive arrays. Used to accumulate per-user
+ * amounts without boxing. Not thread-safe; each worker fills its own map and
+ * the maps are merged afterwards.
+ */
+final class IntLongMap {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+
+    IntLongMap() {
+        this(16);
+    }
+
+    IntLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    void add(int key, long delta) {
+        if (key < 0) throw new IllegalArgumentException("key must not be negative: " + key);
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    long get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds every entry of other into this map and returns this map.
+     */
+    IntLongMap merge(IntLongMap other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.keys[slot] != EMPTY) {
+                add(other.keys[slot], other.values[slot]);
+            }
+        }
+        return this;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The keys in ascending order.
+     */
+    int[] sortedKeys() {
+        int[] sorted = new int[size];
+        int n = 0;
+        for (int key : keys) {
+            if (key != EMPTY) {
+                sorted[n++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY) {
+                add(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
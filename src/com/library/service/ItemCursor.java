@@ -0,0 +1,118 @@
+package com.library.service;
+
+import com.library.model.LibraryItem;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/**
+ * Pages through the items that match an ItemQuery, in catalog order,
+ * without building the full result. Obtained from Library.openCursor.
+ *
+ * The indexed criteria are intersected once, as bitmaps, when the cursor is
+ * opened; a query with only availableOnly walks the live availability bitmap
+ * instead. Each item is checked against the query as its page is read, so
+ * an item that is lent out or changed in between is skipped.
+ *
+ * getPosition() is the ordinal after the last item read, so a listing can
+ * be resumed later with Library.openCursor(query, position). Not
+ * thread-safe.
+ */
+public final class ItemCursor {
+    private static final int BATCH = 64;
+
+    private final ItemQuery query;
+    private final IntBitmap candidates;
+    private final IntFunction<LibraryItem> itemAt;
+    private final IntSupplier itemCount;
+    private final AvailabilityIndex available;
+    private final int[] batch = new int[BATCH];
+    private int position;
+    private boolean exhausted;
+
+    ItemCursor(ItemQuery query, IntBitmap candidates, int position,
+               IntFunction<LibraryItem> itemAt, IntSupplier itemCount, AvailabilityIndex available) {
+        if (position < 0) throw new IllegalArgumentException("position must not be negative: " + position);
+        this.query = query;
+        this.candidates = candidates;
+        this.position = position;
+        this.itemAt = itemAt;
+        this.itemCount = itemCount;
+        this.available = available;
+    }
+
+    /**
+     * The next pageSize matching items, fewer only at the end.
+     */
+    public List<LibraryItem> next(int pageSize) {
+        if (pageSize < 0) throw new IllegalArgumentException("pageSize must not be negative: " + pageSize);
+        List<LibraryItem> page = new ArrayList<>(Math.min(pageSize, 256));
+        fetch(pageSize, page);
+        return page;
+    }
+
+    /**
+     * Moves past up to count matching items and returns how many there were.
+     */
+    public int skip(int count) {
+        if (count < 0) throw new IllegalArgumentException("count must not be negative: " + count);
+        return fetch(count, null);
+    }
+
+    /**
+     * True once the cursor has reached the end of the catalog.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Reads matching items until max were found, adding them to page unless
+     * it is null.
+     */
+    int fetch(int max, List<LibraryItem> page) {
+        int found = 0;
+        while (found < max && !exhausted) {
+            int n = fill();
+            if (n == 0) {
+                exhausted = true;
+                break;
+            }
+            for (int i = 0; i < n && found < max; i++) {
+                LibraryItem item = itemAt.apply(batch[i]);
+                position = batch[i] + 1;
+                if ((!query.availableOnly || item.isAvailable()) && query.matches(item)) {
+                    found++;
+                    if (page != null) {
+                        page.add(item);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private int fill() {
+        if (candidates != null) {
+            int n = 0;
+            for (int ordinal = candidates.nextSetBit(position); ordinal >= 0 && n < BATCH;
+                    ordinal = candidates.nextSetBit(ordinal + 1)) {
+                batch[n++] = ordinal;
+            }
+            return n;
+        }
+        if (query.availableOnly) {
+            return available.fill(position, batch);
+        }
+        int n = Math.max(0, Math.min(BATCH, itemCount.getAsInt() - position));
+        for (int i = 0; i < n; i++) {
+            batch[i] = position + i;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,125 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.LibraryItem;
+import com.library.model.Magazine;
+import java.util.Locale;
+
+/**
+ * Criteria for Library.findItems. Every criterion that is set must match;
+ * string criteria are case-insensitive and, except for titleContains, match
+ * the whole value.
+ *
+ *   new ItemQuery().author("Robert C. Martin").publishedBetween(2000, 2010).availableOnly()
+ */
+public final class ItemQuery {
+    String author;
+    String isbn;
+    Integer yearFrom;
+    Integer yearTo;
+    String itemType;
+    String publisher;
+    Integer issueNumber;
+    String titleContains;
+    boolean availableOnly;
+
+    public ItemQuery author(String author) {
+        this.author = requireValue(author, "author");
+        return this;
+    }
+
+    public ItemQuery isbn(String isbn) {
+        this.isbn = requireValue(isbn, "isbn");
+        return this;
+    }
+
+    /**
+     * Items published from fromYear to toYear, both inclusive.
+     */
+    public ItemQuery publishedBetween(int fromYear, int toYear) {
+        if (fromYear > toYear) {
+            throw new IllegalArgumentException("fromYear must not be after toYear: " + fromYear + " > " + toYear);
+        }
+        this.yearFrom = fromYear;
+        this.yearTo = toYear;
+        return this;
+    }
+
+    /**
+     * Items of the given type, as returned by LibraryItem.getItemType().
+     */
+    public ItemQuery itemType(String itemType) {
+        this.itemType = requireValue(itemType, "itemType");
+        return this;
+    }
+
+    public ItemQuery publisher(String publisher) {
+        this.publisher = requireValue(publisher, "publisher");
+        return this;
+    }
+
+    public ItemQuery issueNumber(int issueNumber) {
+        this.issueNumber = issueNumber;
+        return this;
+    }
+
+    public ItemQuery titleContains(String term) {
+        this.titleContains = requireValue(term, "term");
+        return this;
+    }
+
+    public ItemQuery availableOnly() {
+        this.availableOnly = true;
+        return this;
+    }
+
+    /**
+     * Checks every criterion except availability against the item itself.
+     */
+    boolean matches(LibraryItem item) {
+        if (author != null && !(item instanceof Book && equalsIgnoreCase(((Book) item).getAuthor(), author))) {
+            return false;
+        }
+        if (isbn != null && !(item instanceof Book && equalsIgnoreCase(((Book) item).getIsbn(), isbn))) {
+            return false;
+        }
+        if (yearFrom != null && (item.getPublicationYear() < yearFrom || item.getPublicationYear() > yearTo)) {
+            return false;
+        }
+        if (itemType != null && !equalsIgnoreCase(item.getItemType(), itemType)) {
+            return false;
+        }
+        if (publisher != null && !(item instanceof Magazine && equalsIgnoreCase(((Magazine) item).getPublisher(), publisher))) {
+            return false;
+        }
+        if (issueNumber != null && !(item instanceof Magazine && ((Magazine) item).getIssueNumber() == issueNumber)) {
+            return false;
+        }
+        return titleContains == null || (item.getTitle() != null
+                && item.getTitle().toLowerCase(Locale.ROOT).contains(titleContains.toLowerCase(Locale.ROOT)));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("ItemQuery{");
+        if (author != null) text.append("author='").append(author).append("', ");
+        if (isbn != null) text.append("isbn='").append(isbn).append("', ");
+        if (yearFrom != null) text.append("years=").append(yearFrom).append("..").append(yearTo).append(", ");
+        if (itemType != null) text.append("type='").append(itemType).append("', ");
+        if (publisher != null) text.append("publisher='").append(publisher).append("', ");
+        if (issueNumber != null) text.append("issue=").append(issueNumber).append(", ");
+        if (titleContains != null) text.append("title~'").append(titleContains).append("', ");
+        if (availableOnly) text.append("available, ");
+        if (text.charAt(text.length() - 1) == ' ') text.setLength(text.length() - 2);
+        return text.append('}').toString();
+    }
+
+    private static boolean equalsIgnoreCase(String value, String expected) {
+        return value != null && value.toLowerCase(Locale.ROOT).equals(expected.toLowerCase(Locale.ROOT));
+    }
+
+    private static String requireValue(String value, String name) {
+        if (value == null) throw new IllegalArgumentException(name + " must not be null");
+        return value;
+    }
+}
@@ -0,0 +1,277 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.LibraryItem;
+import com.library.model.Magazine;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/**
+ * Secondary indexes of a Library's catalog and the planner that answers an
+ * ItemQuery from them.
+ *
+ * Each indexed criterion of a query becomes a step with a cost estimate
+ * (the size of its posting lists, read under the index lock). The cheapest
+ * step produces the candidate ordinals and the others narrow them down in
+ * order of increasing cost, stopping early once nothing is left.
+ * Availability is checked against the availability bitmap by ordinal. Only
+ * the surviving items are fetched, and they are checked against the whole
+ * query once more, which also covers the unindexed issue number and any
+ * setter that raced with the query.
+ *
+ * Cursors and counts intersect the steps as bitmaps instead, a container at
+ * a time, so that a broad criterion such as a type never becomes an array.
+ */
+final class ItemQueryPlanner {
+    private final AttributeIndex authors = new AttributeIndex(item -> item instanceof Book ? ((Book) item).getAuthor() : null);
+    private final AttributeIndex isbns = new AttributeIndex(item -> item instanceof Book ? ((Book) item).getIsbn() : null);
+    private final AttributeIndex years = new AttributeIndex(LibraryItem::getPublicationYear);
+    private final AttributeIndex types = new AttributeIndex(LibraryItem::getItemType);
+    private final AttributeIndex publishers = new AttributeIndex(item -> item instanceof Magazine ? ((Magazine) item).getPublisher() : null);
+    private final NGramIndex titles;
+    private final IntFunction<LibraryItem> itemAt;
+    private final IntSupplier itemCount;
+    private final AvailabilityIndex available;
+
+    ItemQueryPlanner(NGramIndex titles, IntFunction<LibraryItem> itemAt, IntSupplier itemCount, AvailabilityIndex available) {
+        this.titles = titles;
+        this.itemAt = itemAt;
+        this.itemCount = itemCount;
+        this.available = available;
+    }
+
+    void add(int ordinal, LibraryItem item) {
+        authors.add(ordinal, item);
+        isbns.add(ordinal, item);
+        years.add(ordinal, item);
+        types.add(ordinal, item);
+        publishers.add(ordinal, item);
+    }
+
+    void addAll(int firstOrdinal, List<? extends LibraryItem> batch) {
+        authors.addAll(firstOrdinal, batch);
+        isbns.addAll(firstOrdinal, batch);
+        years.addAll(firstOrdinal, batch);
+        types.addAll(firstOrdinal, batch);
+        publishers.addAll(firstOrdinal, batch);
+    }
+
+    void onAttributeChange(int ordinal, String attribute, Object oldValue, Object newValue) {
+        if (Book.AUTHOR.equals(attribute)) {
+            authors.update(ordinal, oldValue, newValue);
+        } else if (Book.ISBN.equals(attribute)) {
+            isbns.update(ordinal, oldValue, newValue);
+        } else if (LibraryItem.PUBLICATION_YEAR.equals(attribute)) {
+            years.update(ordinal, oldValue, newValue);
+        } else if (Magazine.PUBLISHER.equals(attribute)) {
+            publishers.update(ordinal, oldValue, newValue);
+        }
+    }
+
+    List<LibraryItem> execute(ItemQuery query, int offset, int limit) {
+        if (offset < 0 || limit < 0) throw new IllegalArgumentException("offset and limit must not be negative");
+        List<Step> steps = plan(query);
+        if (steps.isEmpty() && query.availableOnly) {
+            ItemCursor cursor = open(query, 0);
+            cursor.skip(offset);
+            return cursor.next(limit);
+        }
+        int[] candidates = null;
+        int count = itemCount.getAsInt();
+        if (!steps.isEmpty()) {
+            candidates = steps.get(0).produce();
+            count = candidates.length;
+            for (int i = 1; i < steps.size() && count > 0; i++) {
+                count = steps.get(i).retain(candidates, count);
+            }
+        }
+        List<LibraryItem> page = new ArrayList<>();
+        int skipped = 0;
+        for (int i = 0; i < count && page.size() < limit; i++) {
+            int ordinal = candidates == null ? i : candidates[i];
+            if (query.availableOnly && !available.contains(ordinal)) {
+                continue;
+            }
+            LibraryItem item = itemAt.apply(ordinal);
+            if (query.matches(item)) {
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    page.add(item);
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * A cursor over the matching items from the given ordinal on.
+     */
+    ItemCursor open(ItemQuery query, int position) {
+        return new ItemCursor(query, candidates(plan(query), query.availableOnly), position, itemAt, itemCount, available);
+    }
+
+    /**
+     * Number of matching items. Queries made only of indexed exact criteria
+     * and availability are counted from the bitmaps without reading an item.
+     */
+    int count(ItemQuery query) {
+        List<Step> steps = plan(query);
+        if (query.issueNumber != null || query.titleContains != null) {
+            return open(query, 0).skip(Integer.MAX_VALUE);
+        }
+        if (steps.isEmpty()) {
+            return query.availableOnly ? available.count() : itemCount.getAsInt();
+        }
+        IntBitmap candidates = candidates(steps, false);
+        return query.availableOnly ? available.andCardinality(candidates) : candidates.size();
+    }
+
+    /**
+     * The intersection of the steps' bitmaps, smallest first, or null if
+     * there are no steps.
+     */
+    private IntBitmap candidates(List<Step> steps, boolean availableOnly) {
+        if (steps.isEmpty()) {
+            return null;
+        }
+        IntBitmap candidates = steps.get(0).bitmap();
+        for (int i = 1; i < steps.size() && !candidates.isEmpty(); i++) {
+            candidates = IntBitmap.and(candidates, steps.get(i).bitmap());
+        }
+        return availableOnly && !candidates.isEmpty() ? available.and(candidates) : candidates;
+    }
+
+    /**
+     * The steps execute would run, in order, with their estimates.
+     */
+    String explain(ItemQuery query) {
+        StringBuilder text = new StringBuilder();
+        List<Step> steps = plan(query);
+        if (steps.isEmpty()) {
+            text.append("scan(").append(itemCount.getAsInt()).append(')');
+        }
+        for (Step step : steps) {
+            if (text.length() > 0) {
+                text.append(" -> ");
+            }
+            text.append(step.description).append('(').append(step.estimate).append(')');
+        }
+        if (query.availableOnly) {
+            text.append(" -> available");
+        }
+        return text.append(" -> verify").toString();
+    }
+
+    private List<Step> plan(ItemQuery query) {
+        List<Step> steps = new ArrayList<>();
+        if (query.isbn != null) {
+            steps.add(exact("isbn", isbns, query.isbn));
+        }
+        if (query.author != null) {
+            steps.add(exact("author", authors, query.author));
+        }
+        if (query.publisher != null) {
+            steps.add(exact("publisher", publishers, query.publisher));
+        }
+        if (query.itemType != null) {
+            steps.add(exact("type", types, query.itemType));
+        }
+        if (query.yearFrom != null) {
+            Integer from = query.yearFrom;
+            Integer to = query.yearTo;
+            steps.add(new Step("year", years.countRange(from, to)) {
+                @Override
+                int[] produce() {
+                    return years.lookupRange(from, to);
+                }
+
+                @Override
+                int retain(int[] candidates, int count) {
+                    return years.retainInRange(candidates, count, from, to);
+                }
+
+                @Override
+                IntBitmap bitmap() {
+                    return years.bitmapRange(from, to);
+                }
+            });
+        }
+        if (query.titleContains != null) {
+            int[] found = titles.candidates(query.titleContains);
+            if (found != null) {
+                steps.add(new Step("title", found.length) {
+                    @Override
+                    int[] produce() {
+                        return found.clone();
+                    }
+
+                    @Override
+                    int retain(int[] candidates, int count) {
+                        int kept = 0;
+                        for (int i = 0; i < count; i++) {
+                            if (Arrays.binarySearch(found, candidates[i]) >= 0) {
+                                candidates[kept++] = candidates[i];
+                            }
+                        }
+                        return kept;
+                    }
+
+                    @Override
+                    IntBitmap bitmap() {
+                        IntBitmap bitmap = new IntBitmap();
+                        for (int ordinal : found) {
+                            bitmap.add(ordinal);
+                        }
+                        return bitmap;
+                    }
+                });
+            }
+        }
+        steps.sort(Comparator.comparingInt(step -> step.estimate));
+        return steps;
+    }
+
+    private static Step exact(String name, AttributeIndex index, Object value) {
+        return new Step(name, index.count(value)) {
+            @Override
+            int[] produce() {
+                return index.lookup(value);
+            }
+
+            @Override
+            int retain(int[] candidates, int count) {
+                return index.retainIn(candidates, count, value);
+            }
+
+            @Override
+            IntBitmap bitmap() {
+                return index.bitmap(value);
+            }
+        };
+    }
+
+    /**
+     * One indexed criterion: it can produce its sorted ordinals, narrow down
+     * a sorted candidate array in place, or produce its ordinals as a bitmap.
+     */
+    private abstract static class Step {
+        final String description;
+        final int estimate;
+
+        Step(String description, int estimate) {
+            this.description = description;
+            this.estimate = estimate;
+        }
+
+        abstract int[] produce();
+
+        abstract int retain(int[] candidates, int count);
+
+        abstract IntBitmap bitmap();
+    }
+}
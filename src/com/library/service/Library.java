@@ -2,145 +2,1105 @@ package com.library.service;
 
 import com.library.model.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 /**
  * Library class manages items, users, and borrow records.
  * Demonstrates composition: Library contains LibraryItems and Users.
+ *
+ * Borrowing and returning are safe to call from many threads and take no
+ * library-wide lock: items are claimed by CAS, per-user limits are enforced
+ * by each user's atomic loan counter, and the loan indexes are concurrent
+ * maps. Catalog changes (addItem/addUser) are serialized per registry.
+ *
+ * When a LibraryJournal is attached, each change is appended to it while the
+ * item's loan lock (one of a fixed set of stripes) or the catalog lock is
+ * held, so the journal order matches the order in which changes to the same
+ * item were applied.
+ *
+ * The borrow history is kept in a columnar BorrowHistory; open loans are the
+ * only records held as objects.
+ *
+ * "Today" comes from the library's Clock, read once per call. Batch methods
+ * also take an explicit as-of date so that a whole report is evaluated
+ * against one day, which may be in the past. Running fee balances are kept
+ * by a FeeLedger, which a daily job moves forward with advanceTo.
  */
 public class Library {
     private String name;
-    private List<LibraryItem> items;
-    private List<User> users;
-    private List<BorrowRecord> borrowRecords;
+    private Registry<LibraryItem> items;
+    private Registry<User> users;
+    private final BorrowHistory history;
+    private Map<Integer, OpenLoan> openLoans;
+    private final DueDateIndex dueDateIndex = new DueDateIndex();
+    private final EpochGate epochs = new EpochGate();
+    // one per open snapshot, held weakly so that an unclosed snapshot can be collected
+    private final java.util.concurrent.CopyOnWriteArrayList<java.lang.ref.WeakReference<ClosedLoans>> closedLoanLogs =
+            new java.util.concurrent.CopyOnWriteArrayList<>();
+    private final LibraryCounters counters = new LibraryCounters();
+    private final NGramIndex titleIndex = new NGramIndex(LibraryItem::getTitle);
+    private final NGramIndex authorIndex = new NGramIndex(item -> item instanceof Book ? ((Book) item).getAuthor() : null);
+    private final NGramIndex publisherIndex = new NGramIndex(item -> item instanceof Magazine ? ((Magazine) item).getPublisher() : null);
+    private final AvailabilityIndex availability = new AvailabilityIndex();
+    private final ItemQueryPlanner queryPlanner = new ItemQueryPlanner(titleIndex,
+            ordinal -> items.get(ordinal), () -> items.size(), availability);
+    private final IndexMaintainer indexMaintainer = new IndexMaintainer();
+    private final Object catalogLock = new Object();
+    private final Object[] loanLocks = new Object[64];
+    private volatile LibraryJournal journal;
+    private final java.time.Clock clock;
+    private final FeeLedger feeLedger;
+    private volatile RecordIdGenerator recordIdGenerator;
+    private volatile LibraryMetrics metrics;
+    private final UserReportCache userReportCache = new UserReportCache(UserReportCache.DEFAULT_MAXIMUM_WEIGHT);
+    // the image the catalog was restored from, while its items are not yet in the search indexes
+    private volatile LibraryImage image;
+    private volatile boolean catalogIndexPending;
 
     public Library(String name) {
+        this(name, java.time.Clock.systemDefaultZone());
+    }
+
+    public Library(String name, java.time.Clock clock) {
         this.name = name;
-        this.items = new ArrayList<>();
-        this.users = new ArrayList<>();
-        this.borrowRecords = new ArrayList<>();
+        this.clock = java.util.Objects.requireNonNull(clock, "clock");
+        this.feeLedger = new FeeLedger(this, today());
+        this.recordIdGenerator = new SnowflakeIdGenerator(0, clock);
+        this.items = new Registry<>("item");
+        this.users = new Registry<>("user");
+        this.history = new BorrowHistory(this);
+        this.openLoans = new ConcurrentHashMap<>();
+        for (int i = 0; i < loanLocks.length; i++) {
+            loanLocks[i] = new Object();
+        }
     }
 
     public String getName() {
         return name;
     }
 
+    public java.time.Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * The current date according to the library's clock.
+     */
+    public java.time.LocalDate today() {
+        return java.time.LocalDate.now(clock);
+    }
+
+    public FeeLedger getFeeLedger() {
+        return feeLedger;
+    }
+
+    public RecordIdGenerator getRecordIdGenerator() {
+        return recordIdGenerator;
+    }
+
+    /**
+     * Replaces the generator used for loans made without an explicit record
+     * id, e.g. to give each library instance its own Snowflake node.
+     */
+    public void setRecordIdGenerator(RecordIdGenerator recordIdGenerator) {
+        this.recordIdGenerator = java.util.Objects.requireNonNull(recordIdGenerator, "recordIdGenerator");
+    }
+
+    /**
+     * Starts recording operation metrics and returns the recorder. Calling it
+     * again returns the same recorder.
+     */
+    public synchronized LibraryMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new LibraryMetrics();
+        }
+        return metrics;
+    }
+
+    public synchronized void disableMetrics() {
+        metrics = null;
+    }
+
+    /**
+     * The metrics recorder, or null while metrics are disabled.
+     */
+    public LibraryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The cache of rendered user reports that LibraryStatistics uses.
+     */
+    public UserReportCache getUserReportCache() {
+        return userReportCache;
+    }
+
     public List<LibraryItem> getItems() {
-        return items;
+        return items.asList();
     }
 
     public List<User> getUsers() {
-        return users;
+        return users.asList();
     }
 
+    public int getItemCount() {
+        return items.size();
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Copy of the borrow history in the order the loans were made. Returned
+     * loans are materialized from the history columns; prefer getHistory()
+     * for scans over long histories.
+     */
     public List<BorrowRecord> getBorrowRecords() {
-        return borrowRecords;
+        List<BorrowRecord> records = new ArrayList<>(history.size());
+        for (BorrowRecord record : history.asList()) {
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    public long getBorrowRecordCount() {
+        return history.size();
+    }
+
+    public BorrowHistory getHistory() {
+        return history;
     }
     
+    /**
+     * Adds an item to the catalog.
+     * @throws IllegalArgumentException if the id is null or already in use
+     */
     public void addItem(LibraryItem item) {
-        items.add(item);
+        ensureCatalogIndexed();
+        int ordinal;
+        long position = -1;
+        synchronized (catalogLock) {
+            LibraryJournal journal = this.journal;
+            if (journal != null) {
+                items.requireAvailable(item.getId());
+                position = journal.appendAddItem(item);
+            }
+            ordinal = items.add(item.getId(), item);
+        }
+        // indexes and availability are read after the listener is in place,
+        // so a concurrent setter or borrow is not missed
+        item.addListener(indexMaintainer);
+        titleIndex.add(ordinal, item);
+        authorIndex.add(ordinal, item);
+        publisherIndex.add(ordinal, item);
+        queryPlanner.add(ordinal, item);
+        counters.itemAdded(item);
+        availability.update(ordinal, item);
+        awaitDurable(position);
     }
 
+    /**
+     * Registers a user with the library.
+     * @throws IllegalArgumentException if the id is null or already in use
+     */
     public void addUser(User user) {
-        users.add(user);
+        int ordinal;
+        long position = -1;
+        synchronized (catalogLock) {
+            LibraryJournal journal = this.journal;
+            if (journal != null) {
+                users.requireAvailable(user.getUserId());
+                position = journal.appendAddUser(user);
+            }
+            ordinal = users.add(user.getUserId(), user);
+        }
+        user.addListener(indexMaintainer);
+        counters.loanCountChanged(ordinal, () -> user.getBorrowedItems().size());
+        awaitDurable(position);
+    }
+
+    /**
+     * Adds a batch of items under one catalog lock and indexes them together.
+     * Items whose id is null, already in use or repeated earlier in the batch
+     * are skipped.
+     * @return the items that were added, in order
+     */
+    public List<LibraryItem> addItems(List<? extends LibraryItem> batch) {
+        ensureCatalogIndexed();
+        List<LibraryItem> added = new ArrayList<>(batch.size());
+        int first;
+        long position = -1;
+        synchronized (catalogLock) {
+            Set<String> batchIds = new HashSet<>();
+            for (LibraryItem item : batch) {
+                String id = item.getId();
+                if (id != null && !items.containsId(id) && batchIds.add(id)) {
+                    added.add(item);
+                }
+            }
+            LibraryJournal journal = this.journal;
+            if (journal != null) {
+                for (LibraryItem item : added) {
+                    position = journal.appendAddItem(item);
+                }
+            }
+            first = items.addAll(added, LibraryItem::getId);
+        }
+        for (LibraryItem item : added) {
+            item.addListener(indexMaintainer);
+            counters.itemAdded(item);
+        }
+        titleIndex.addAll(first, added);
+        authorIndex.addAll(first, added);
+        publisherIndex.addAll(first, added);
+        queryPlanner.addAll(first, added);
+        availability.addAll(first, added);
+        awaitDurable(position);
+        return added;
     }
 
+    /**
+     * Registers a batch of users under one catalog lock. Users whose id is
+     * null, already in use or repeated earlier in the batch are skipped.
+     * @return the users that were added, in order
+     */
+    public List<User> addUsers(List<? extends User> batch) {
+        List<User> added = new ArrayList<>(batch.size());
+        int first;
+        long position = -1;
+        synchronized (catalogLock) {
+            Set<String> batchIds = new HashSet<>();
+            for (User user : batch) {
+                String id = user.getUserId();
+                if (id != null && !users.containsId(id) && batchIds.add(id)) {
+                    added.add(user);
+                }
+            }
+            LibraryJournal journal = this.journal;
+            if (journal != null) {
+                for (User user : added) {
+                    position = journal.appendAddUser(user);
+                }
+            }
+            first = users.addAll(added, User::getUserId);
+        }
+        for (int i = 0; i < added.size(); i++) {
+            User user = added.get(i);
+            user.addListener(indexMaintainer);
+            counters.loanCountChanged(first + i, () -> user.getBorrowedItems().size());
+        }
+        awaitDurable(position);
+        return added;
+    }
+
+    public LibraryItem findItemById(String id) {
+        return items.get(id);
+    }
+
+    public User findUserById(String userId) {
+        return users.get(userId);
+    }
+
+    User getUser(int ordinal) {
+        return users.get(ordinal);
+    }
+
+    /**
+     * Ordinal of a registered user, or -1 if the user is not registered here.
+     */
+    int ordinalOf(User user) {
+        int ordinal = users.ordinalOf(user.getUserId());
+        return ordinal >= 0 && users.get(ordinal) == user ? ordinal : -1;
+    }
+
+    LibraryItem getItem(int ordinal) {
+        return items.get(ordinal);
+    }
+
+    LibraryCounters counters() {
+        return counters;
+    }
+
+    EpochGate epochs() {
+        return epochs;
+    }
+
+    /**
+     * Lends an item to a user and records the loan.
+     * @throws IllegalArgumentException if the user or item is not registered with this library
+     */
     public boolean borrowItem(User user, LibraryItem item, String recordId, java.time.LocalDate borrowDate, java.time.LocalDate dueDate) {
-        if (user.borrowItem(item)) {
-            BorrowRecord record = new BorrowRecord(recordId, user, item, borrowDate, dueDate);
-            borrowRecords.add(record);
-            return true;
+        int itemOrdinal = requireItemOrdinal(item);
+        int userOrdinal = requireUserOrdinal(user);
+        return borrow(new BorrowRecord(recordId, user, item, borrowDate, dueDate), itemOrdinal, userOrdinal)
+                == LibraryMetrics.Outcome.SUCCESS;
+    }
+
+    /**
+     * Lends an item under a numeric record id.
+     * @throws IllegalArgumentException if the user or item is not registered with this library
+     */
+    public boolean borrowItem(User user, LibraryItem item, long recordId, java.time.LocalDate borrowDate, java.time.LocalDate dueDate) {
+        int itemOrdinal = requireItemOrdinal(item);
+        int userOrdinal = requireUserOrdinal(user);
+        return borrow(new BorrowRecord(recordId, user, item, borrowDate, dueDate), itemOrdinal, userOrdinal)
+                == LibraryMetrics.Outcome.SUCCESS;
+    }
+
+    /**
+     * Lends an item under a record id taken from the record id generator.
+     * @throws IllegalArgumentException if the user or item is not registered with this library
+     */
+    public boolean borrowItem(User user, LibraryItem item, java.time.LocalDate borrowDate, java.time.LocalDate dueDate) {
+        return borrowWithGeneratedId(user, item, borrowDate, dueDate) == LibraryMetrics.Outcome.SUCCESS;
+    }
+
+    private LibraryMetrics.Outcome borrowWithGeneratedId(User user, LibraryItem item, java.time.LocalDate borrowDate,
+                                                         java.time.LocalDate dueDate) {
+        int itemOrdinal = requireItemOrdinal(item);
+        int userOrdinal = requireUserOrdinal(user);
+        long recordId = recordIdGenerator.nextId();
+        return borrow(new BorrowRecord(recordId, user, item, borrowDate, dueDate), itemOrdinal, userOrdinal);
+    }
+
+    /**
+     * Lends and records the outcome under BORROW when metrics are enabled.
+     * A call that throws is counted as FAILURE.
+     */
+    private LibraryMetrics.Outcome borrow(BorrowRecord record, int itemOrdinal, int userOrdinal) {
+        LibraryMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return lendAndJournal(record, itemOrdinal, userOrdinal);
+        }
+        long start = System.nanoTime();
+        LibraryMetrics.Outcome outcome = LibraryMetrics.Outcome.FAILURE;
+        try {
+            outcome = lendAndJournal(record, itemOrdinal, userOrdinal);
+            return outcome;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.BORROW, outcome, start);
         }
-        return false;
     }
 
-    public boolean returnItem(User user, LibraryItem item) {
-        boolean returned = user.returnItem(item);
-        if (returned) {
-            for (BorrowRecord record : borrowRecords) {
-                if (record.getUser().equals(user) && record.getItem().equals(item) && record.getReturnDate() == null) {
-                    record.markAsReturned();
-                    break;
+    private LibraryMetrics.Outcome lendAndJournal(BorrowRecord record, int itemOrdinal, int userOrdinal) {
+        LibraryJournal journal = this.journal;
+        if (journal == null) {
+            return lend(record, itemOrdinal, userOrdinal);
+        }
+        long position;
+        synchronized (loanLock(itemOrdinal)) {
+            LibraryMetrics.Outcome outcome = lend(record, itemOrdinal, userOrdinal);
+            if (outcome != LibraryMetrics.Outcome.SUCCESS) {
+                return outcome;
+            }
+            position = journal.appendBorrow(itemOrdinal, userOrdinal, record);
+        }
+        journal.awaitDurable(position);
+        return LibraryMetrics.Outcome.SUCCESS;
+    }
+
+    /**
+     * Lends the item, or says why not: UNAVAILABLE if the item is out,
+     * LIMIT_REACHED if the user already holds as many items as allowed.
+     */
+    private LibraryMetrics.Outcome lend(BorrowRecord record, int itemOrdinal, int userOrdinal) {
+        User user = record.getUser();
+        LibraryItem item = record.getItem();
+        java.time.LocalDate dueDate = record.getDueDate();
+        OpenLoan loan = new OpenLoan(record);
+        // Claim the open-loan slot first so that a return racing with this
+        // borrow always finds the record to close.
+        if (openLoans.putIfAbsent(itemOrdinal, loan) != null) {
+            return LibraryMetrics.Outcome.UNAVAILABLE;
+        }
+        dueDateIndex.add(record);
+        if (!user.borrowItem(item)) {
+            dueDateIndex.remove(record);
+            openLoans.remove(itemOrdinal, loan);
+            // holding the open-loan slot, only a loan made outside the
+            // library can have taken the item; otherwise the user was full
+            return item.isAvailable() ? LibraryMetrics.Outcome.LIMIT_REACHED : LibraryMetrics.Outcome.UNAVAILABLE;
+        }
+        long numericId = record.getNumericRecordId();
+        String recordId = numericId == BorrowRecord.NO_NUMERIC_ID ? record.getRecordId() : null;
+        // The epoch is entered only once the user holds the item: a return that
+        // freed the item or a loan slot closed its loan in an epoch entered
+        // before that, so no snapshot shows this loan without that return.
+        int epoch = epochs.enter();
+        try {
+            loan.setRow(history.append(recordId, numericId, userOrdinal, itemOrdinal, record.getBorrowDate(), dueDate, null, epoch));
+        } finally {
+            epochs.exit(epoch);
+        }
+        if (dueDate.toEpochDay() < feeLedger.dayAsEpochDay()) {
+            markOverdue(loan, userOrdinal);
+        }
+        return LibraryMetrics.Outcome.SUCCESS;
+    }
+
+    /**
+     * Closes the open loan of an item if the given user holds it, and returns
+     * the closed record (or null if there was nothing to close).
+     */
+    private BorrowRecord closeLoan(User user, int itemOrdinal) {
+        OpenLoan loan = openLoans.get(itemOrdinal);
+        if (loan == null || loan.record.getUser() != user) {
+            return null;
+        }
+        int epoch = epochs.enter();
+        try {
+            // logged before the loan leaves openLoans, so that a snapshot
+            // that no longer finds it there finds it in its log
+            for (java.lang.ref.WeakReference<ClosedLoans> log : closedLoanLogs) {
+                ClosedLoans closed = log.get();
+                if (closed != null) {
+                    closed.add(loan);
                 }
             }
+            if (!openLoans.remove(itemOrdinal, loan)) {
+                return null;
+            }
+            dueDateIndex.remove(loan.record);
+            loan.record.markAsReturned(today());
+            loan.setReturnDate(loan.record.getReturnDate(), epoch);
+        } finally {
+            epochs.exit(epoch);
+        }
+        boolean wasOverdue = loan.ledgerState.getAndSet(OpenLoan.LEDGER_CLOSED) == OpenLoan.LEDGER_OVERDUE;
+        feeLedger.loanReturned(ordinalOf(user), (int) loan.record.getDueDate().toEpochDay(),
+                (int) loan.record.getReturnDate().toEpochDay(), wasOverdue);
+        return loan.record;
+    }
+
+    /**
+     * Counts a loan in the fee ledger as overdue, unless it already is or has
+     * been returned.
+     */
+    private void markOverdue(OpenLoan loan, int userOrdinal) {
+        if (loan.ledgerState.compareAndSet(OpenLoan.LEDGER_PENDING, OpenLoan.LEDGER_OVERDUE)) {
+            feeLedger.loanOverdue(userOrdinal, (int) loan.record.getDueDate().toEpochDay());
+        }
+    }
+
+    /**
+     * Called by the fee ledger when its day moves from 'from' to 'to': every
+     * open loan due in between is now overdue.
+     */
+    void loansFallenDue(java.time.LocalDate from, java.time.LocalDate to) {
+        for (BorrowRecord record : dueDateIndex.dueBetween(from, to)) {
+            int itemOrdinal = items.ordinalOf(record.getItem().getId());
+            OpenLoan loan = itemOrdinal < 0 ? null : openLoans.get(itemOrdinal);
+            if (loan != null && loan.record == record) {
+                markOverdue(loan, ordinalOf(record.getUser()));
+            }
         }
-        return returned;
+    }
+
+    /**
+     * The live record of a history row if that row is the item's open loan.
+     */
+    BorrowRecord openRecordAt(int itemOrdinal, int row) {
+        OpenLoan loan = openLoans.get(itemOrdinal);
+        return loan != null && loan.row == row ? loan.record : null;
+    }
+
+    /**
+     * Takes an item back from a user. The open loan is closed by the
+     * IndexMaintainer, which also handles returns made through
+     * BorrowRecord.markAsReturned(date), so both paths keep the index in step.
+     */
+    public boolean returnItem(User user, LibraryItem item) {
+        LibraryMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return user.returnItem(item);
+        }
+        long start = System.nanoTime();
+        boolean returned = false;
+        try {
+            returned = user.returnItem(item);
+            return returned;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.RETURN, returned ? LibraryMetrics.Outcome.SUCCESS : LibraryMetrics.Outcome.FAILURE, start);
+        }
+    }
+
+    /**
+     * Returns the open loan of the given item by the given user, or null if
+     * the user does not currently hold the item. Does not scan the history.
+     */
+    public BorrowRecord findOpenLoan(User user, LibraryItem item) {
+        int itemOrdinal = items.ordinalOf(item.getId());
+        OpenLoan loan = itemOrdinal < 0 ? null : openLoans.get(itemOrdinal);
+        return loan != null && loan.record.getUser() == user ? loan.record : null;
+    }
+
+    public Collection<BorrowRecord> getOpenLoans() {
+        return Collections.unmodifiableCollection(openLoans.values().stream().map(loan -> loan.record).collect(Collectors.toList()));
+    }
+
+    public int getOpenLoanCount() {
+        return openLoans.size();
     }
 
     public List<LibraryItem> getAvailableItems() {
-        return items.stream().filter(LibraryItem::isAvailable).collect(Collectors.toList());
+        return openCursor(new ItemQuery().availableOnly()).next(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Number of items on the shelf, read from the availability bitmap in O(1).
+     */
+    public int getAvailableItemCount() {
+        return availability.count();
     }
 
     public List<BorrowRecord> getOverdueRecords() {
-        return borrowRecords.stream()
-                .filter(record -> record.getReturnDate() == null && record.isOverdue())
-                .collect(Collectors.toList());
+        return getOverdueRecords(today());
+    }
+
+    /**
+     * Open loans that are overdue as of the given date, earliest due date first.
+     * Reads only the overdue prefix of the due-date index.
+     */
+    public List<BorrowRecord> getOverdueRecords(java.time.LocalDate asOf) {
+        return dueDateIndex.overdueAsOf(asOf);
     }
 
+    /**
+     * With metrics enabled, the outcome of every item is counted under
+     * BORROW_MULTIPLE and the latency of the whole call is recorded once.
+     */
     public List<String> borrowMultipleItems(User user, List<LibraryItem> itemsToBorrow, int borrowDays) {
+        LibraryMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
         List<String> results = new ArrayList<>();
 
-        java.time.LocalDate borrowDate = java.time.LocalDate.now();
+        java.time.LocalDate borrowDate = today();
 
         for (LibraryItem item : itemsToBorrow) {
             String title = item.getTitle();
             if (item.isAvailable()) {
                 if (user.getBorrowedItemsCount() < user.getMaxBorrowLimit()) {
-                    String recordId = "R-" + user.getUserId() + "-" + item.getId() + "-" + System.currentTimeMillis();
                     java.time.LocalDate dueDate = DateUtils.addDays(borrowDate, borrowDays);
                     
-                    if (borrowItem(user, item, recordId, borrowDate, dueDate)) {
+                    LibraryMetrics.Outcome outcome = borrowWithGeneratedId(user, item, borrowDate, dueDate);
+                    if (outcome == LibraryMetrics.Outcome.SUCCESS) {
                         results.add("SUCCESS: Borrowed " + title);
                     } else {
                         results.add("FAILED: Could not borrow " + title);
                     }
+                    count(metrics, outcome);
                 } else {
                     results.add("LIMIT_REACHED: Cannot borrow " + title + " - limit reached");
+                    count(metrics, LibraryMetrics.Outcome.LIMIT_REACHED);
                 }
             } else {
                 results.add("UNAVAILABLE: " + title + " is not available");
+                count(metrics, LibraryMetrics.Outcome.UNAVAILABLE);
             }
         }
 
+        if (metrics != null) {
+            metrics.recordLatency(LibraryMetrics.Operation.BORROW_MULTIPLE, start);
+        }
         return results;
     }
 
+    private static void count(LibraryMetrics metrics, LibraryMetrics.Outcome outcome) {
+        if (metrics != null) {
+            metrics.count(LibraryMetrics.Operation.BORROW_MULTIPLE, outcome);
+        }
+    }
+
     public Map<User, Double> processOverdueItems() {
+        return processOverdueItems(today());
+    }
+
+    /**
+     * Late fees per user for the loans that are overdue as of the given date.
+     */
+    public Map<User, Double> processOverdueItems(java.time.LocalDate asOf) {
         Map<User, Double> overdueFeesMap = new HashMap<>();
 
-        for (BorrowRecord record : borrowRecords) {
-            if (record.isOverdue() && record.getReturnDate() == null) {
-                double fee = record.calculateLateFee();
-                User user = record.getUser();
+        for (BorrowRecord record : getOverdueRecords(asOf)) {
+            double fee = record.calculateLateFee(asOf);
+            User user = record.getUser();
 
-                if (overdueFeesMap.containsKey(user)) {
-                    overdueFeesMap.put(user, overdueFeesMap.get(user) + fee);
-                } else {
-                    overdueFeesMap.put(user, fee);
-                }
+            if (overdueFeesMap.containsKey(user)) {
+                overdueFeesMap.put(user, overdueFeesMap.get(user) + fee);
+            } else {
+                overdueFeesMap.put(user, fee);
             }
         }
 
         return overdueFeesMap;
     }
 
+    public FeeSummary aggregateOverdueFees(java.time.LocalDate asOf) {
+        return aggregateOverdueFees(asOf, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * The fees of processOverdueItems(asOf), computed in parallel over the
+     * borrow history on the given pool.
+     */
+    public FeeSummary aggregateOverdueFees(java.time.LocalDate asOf, ForkJoinPool pool) {
+        return new FeeSummary(this, history.aggregateLateFees((int) asOf.toEpochDay(), true, pool));
+    }
+
+    /**
+     * Late fees of the whole history in parallel: returned loans up to their
+     * return date and open loans up to asOf.
+     */
+    public FeeSummary aggregateLateFees(java.time.LocalDate asOf, ForkJoinPool pool) {
+        return new FeeSummary(this, history.aggregateLateFees((int) asOf.toEpochDay(), false, pool));
+    }
+
+    /**
+     * A consistent read-only view of the loans as they are now. Taking it
+     * waits only for borrows and returns already under way; it copies nothing
+     * and later changes do not show through it. Close it when done, so that
+     * returns stop being logged for it and archive stops waiting on it.
+     */
+    public LibrarySnapshot snapshot() {
+        ClosedLoans closed = new ClosedLoans();
+        // registered before the epoch closes: a return stamped with a later
+        // epoch entered it after this and so sees the log
+        closedLoanLogs.add(new java.lang.ref.WeakReference<>(closed));
+        closedLoanLogs.removeIf(log -> log.get() == null);
+        int rowsBefore = history.size();
+        BorrowHistory.View view = history.pinView(epochs, closed);
+        int userCount = users.size();
+        return new LibrarySnapshot(this, view, closed, rowsBefore, items.size(), userCount,
+                counters.getBooks(), counters.getMagazines(), counters.mostActiveUserOrdinal(userCount));
+    }
+
+    void closeSnapshot(ClosedLoans closed) {
+        epochs.unpin(closed);
+        closedLoanLogs.removeIf(log -> {
+            ClosedLoans registered = log.get();
+            return registered == null || registered == closed;
+        });
+    }
+
+    /**
+     * Visits, in row order, the loans open in a snapshot: the loans open now
+     * that the view already holds, and the loans in its log of those closed
+     * since, each shown open if the view does not see its return yet. With
+     * dueBefore, only loans due before it are visited, and those open now
+     * are found through the due-date index instead of all open loans.
+     */
+    void forEachOpenAt(BorrowHistory.View view, ClosedLoans closed, java.time.LocalDate dueBefore,
+                       BorrowHistory.RowVisitor visitor) {
+        IntBitmap rows = new IntBitmap();
+        if (dueBefore == null) {
+            for (OpenLoan loan : openLoans.values()) {
+                addRow(rows, loan);
+            }
+        } else {
+            for (BorrowRecord record : dueDateIndex.overdueAsOf(dueBefore)) {
+                int itemOrdinal = items.ordinalOf(record.getItem().getId());
+                OpenLoan loan = itemOrdinal < 0 ? null : openLoans.get(itemOrdinal);
+                if (loan != null && loan.record == record) {
+                    addRow(rows, loan);
+                }
+            }
+        }
+        // read after openLoans: a loan missed there was logged before it left
+        for (OpenLoan loan : closed.loans()) {
+            if (dueBefore == null || loan.record.getDueDate().isBefore(dueBefore)) {
+                addRow(rows, loan);
+            }
+        }
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            view.forEach(row, row + 1, (r, user, item, borrowDay, dueDay, returnDay) -> {
+                if (returnDay == BorrowHistory.NOT_RETURNED) {
+                    visitor.visit(r, user, item, borrowDay, dueDay, returnDay);
+                }
+            });
+        }
+    }
+
+    /**
+     * A loan without a row yet was lent after every snapshot taken so far,
+     * whose epochs waited for the rows of earlier loans.
+     */
+    private static void addRow(IntBitmap rows, OpenLoan loan) {
+        int row = loan.row;
+        if (row >= 0) {
+            rows.add(row);
+        }
+    }
+
     public List<LibraryItem> findItemsByTitle(String searchTerm) {
-        List<LibraryItem> foundItems = new ArrayList<>();
+        return findItemsByTitle(searchTerm, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Case-insensitive substring search on titles, answered from the trigram
+     * index. Results are in catalog order; offset and limit select one page.
+     */
+    public List<LibraryItem> findItemsByTitle(String searchTerm, int offset, int limit) {
+        LibraryMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return search(new NGramIndex[] {titleIndex}, searchTerm, offset, limit);
+        }
+        long start = System.nanoTime();
+        LibraryMetrics.Outcome outcome = LibraryMetrics.Outcome.FAILURE;
+        try {
+            List<LibraryItem> found = search(new NGramIndex[] {titleIndex}, searchTerm, offset, limit);
+            outcome = LibraryMetrics.Outcome.SUCCESS;
+            return found;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.FIND_BY_TITLE, outcome, start);
+        }
+    }
+
+    public List<LibraryItem> findItemsByAuthor(String searchTerm, int offset, int limit) {
+        return search(new NGramIndex[] {authorIndex}, searchTerm, offset, limit);
+    }
+
+    public List<LibraryItem> findItemsByPublisher(String searchTerm, int offset, int limit) {
+        return search(new NGramIndex[] {publisherIndex}, searchTerm, offset, limit);
+    }
+
+    /**
+     * Searches titles, book authors and magazine publishers at once.
+     */
+    public List<LibraryItem> searchItems(String searchTerm, int offset, int limit) {
+        return search(new NGramIndex[] {titleIndex, authorIndex, publisherIndex}, searchTerm, offset, limit);
+    }
+
+    public List<LibraryItem> findItems(ItemQuery query) {
+        return findItems(query, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Items matching every criterion of the query, in catalog order; offset
+     * and limit select one page. The criteria are answered from the
+     * secondary indexes, most selective first, before any item is read.
+     */
+    public List<LibraryItem> findItems(ItemQuery query, int offset, int limit) {
+        if (query == null) throw new IllegalArgumentException("query must not be null");
+        ensureCatalogIndexed();
+        return queryPlanner.execute(query, offset, limit);
+    }
+
+    /**
+     * Number of items matching the query. Indexed criteria and availability
+     * are counted by intersecting bitmaps, without reading the items.
+     */
+    public int countItems(ItemQuery query) {
+        if (query == null) throw new IllegalArgumentException("query must not be null");
+        ensureCatalogIndexed();
+        return queryPlanner.count(query);
+    }
+
+    /**
+     * A cursor that pages through the items matching the query in catalog order.
+     */
+    public ItemCursor openCursor(ItemQuery query) {
+        return openCursor(query, 0);
+    }
+
+    /**
+     * Resumes a listing from the position of an earlier cursor over the same query.
+     */
+    public ItemCursor openCursor(ItemQuery query, int position) {
+        if (query == null) throw new IllegalArgumentException("query must not be null");
+        ensureCatalogIndexed();
+        return queryPlanner.open(query, position);
+    }
+
+    /**
+     * Describes how findItems would answer the query: the index steps in
+     * the order they run, each with its estimated number of items.
+     */
+    public String explain(ItemQuery query) {
+        if (query == null) throw new IllegalArgumentException("query must not be null");
+        ensureCatalogIndexed();
+        return queryPlanner.explain(query);
+    }
+
+    private List<LibraryItem> search(NGramIndex[] fields, String searchTerm, int offset, int limit) {
+        if (searchTerm == null) throw new IllegalArgumentException("searchTerm must not be null");
+        if (offset < 0 || limit < 0) throw new IllegalArgumentException("offset and limit must not be negative");
+        ensureCatalogIndexed();
+        List<LibraryItem> page = new ArrayList<>();
+        int[] candidates = candidates(fields, searchTerm);
+        int count = candidates == null ? items.size() : candidates.length;
+        int skipped = 0;
+        for (int i = 0; i < count && page.size() < limit; i++) {
+            LibraryItem item = items.get(candidates == null ? i : candidates[i]);
+            if (matchesAny(fields, item, searchTerm)) {
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    page.add(item);
+                }
+            }
+        }
+        return page;
+    }
 
-        for (LibraryItem item : items) {
-            if (item.getTitle() != null && item.getTitle().toLowerCase().contains(searchTerm.toLowerCase())) {
-                foundItems.add(item);
+    /**
+     * Union of the candidate ordinals of every field, or null if any field
+     * needs a full scan because the term is shorter than a trigram.
+     */
+    private int[] candidates(NGramIndex[] fields, String searchTerm) {
+        int[] union = new int[0];
+        for (NGramIndex field : fields) {
+            int[] found = field.candidates(searchTerm);
+            if (found == null) {
+                return null;
             }
+            union = union.length == 0 ? found : mergeSorted(union, found);
         }
+        return union;
+    }
+
+    private static int[] mergeSorted(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            int next = (j == b.length || (i < a.length && a[i] <= b[j])) ? a[i] : b[j];
+            if (i < a.length && a[i] == next) i++;
+            if (j < b.length && b[j] == next) j++;
+            merged[n++] = next;
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    private static boolean matchesAny(NGramIndex[] fields, LibraryItem item, String searchTerm) {
+        for (NGramIndex field : fields) {
+            if (field.matches(item, searchTerm)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        if (foundItems.isEmpty()) {
-            System.out.println("No items found matching: " + searchTerm);
+    private int requireItemOrdinal(LibraryItem item) {
+        int ordinal = items.ordinalOf(item.getId());
+        if (ordinal < 0 || items.get(ordinal) != item) {
+            throw new IllegalArgumentException("Item is not registered with this library: " + item.getId());
         }
+        return ordinal;
+    }
 
-        return foundItems;
+    private int requireUserOrdinal(User user) {
+        int ordinal = users.ordinalOf(user.getUserId());
+        if (ordinal < 0 || users.get(ordinal) != user) {
+            throw new IllegalArgumentException("User is not registered with this library: " + user.getUserId());
+        }
+        return ordinal;
+    }
+
+    private Object loanLock(int itemOrdinal) {
+        return loanLocks[itemOrdinal % loanLocks.length];
+    }
+
+    private void awaitDurable(long position) {
+        LibraryJournal journal = this.journal;
+        if (journal != null && position >= 0) {
+            journal.awaitDurable(position);
+        }
+    }
+
+    void attachJournal(LibraryJournal journal) {
+        synchronized (catalogLock) {
+            this.journal = journal;
+        }
+    }
+
+    /**
+     * Runs the action while no catalog change, borrow or return can proceed.
+     */
+    void runExclusive(Runnable action) {
+        synchronized (catalogLock) {
+            lockLoans(0, action);
+        }
+    }
+
+    private void lockLoans(int stripe, Runnable action) {
+        if (stripe == loanLocks.length) {
+            action.run();
+            return;
+        }
+        synchronized (loanLocks[stripe]) {
+            lockLoans(stripe + 1, action);
+        }
+    }
+
+    /**
+     * Copies what a snapshot needs. Call from runExclusive so that the copy is
+     * consistent with the journal position.
+     */
+    LibraryJournal.LibraryState captureState() {
+        LibraryJournal.LibraryState state = new LibraryJournal.LibraryState(name,
+                LibraryImage.captureItems(items.asLoadedList()), LibraryImage.captureUsers(users.asLoadedList()),
+                image, history.size());
+        IntBitmap openRows = new IntBitmap();
+        history.forEach((row, user, item, borrowDay, dueDay, returnDay) -> {
+            state.numericIds[row] = history.numericId(row);
+            if (state.numericIds[row] == BorrowRecord.NO_NUMERIC_ID) {
+                state.recordIds[row] = history.recordId(row);
+            }
+            state.userOrdinals[row] = user;
+            state.itemOrdinals[row] = item;
+            state.borrowDays[row] = borrowDay;
+            state.dueDays[row] = dueDay;
+            state.returnDays[row] = returnDay;
+            if (returnDay == BorrowHistory.NOT_RETURNED) {
+                openRows.add(row);
+            }
+        });
+        state.openRows = openRows.toArray();
+        for (int ordinal = 0; ordinal < state.chargedCents.length; ordinal++) {
+            state.chargedCents[ordinal] = feeLedger.chargedCents(ordinal);
+        }
+        return state;
+    }
+
+    /**
+     * A library restored from a snapshot image. Items and users are built
+     * from the image when first used, and the search indexes are filled on
+     * the first search or catalog change. Returned loans are copied into the
+     * history as columns and the fees charged for them are read back per
+     * user; only open loans build records, and they are lent again as they
+     * were.
+     */
+    static Library restore(LibraryImage image) throws java.io.IOException {
+        Library library = new Library(image.name());
+        library.load(image);
+        return library;
+    }
+
+    private void load(LibraryImage image) throws java.io.IOException {
+        this.image = image;
+        items.addFromSource(image.itemCount(), new Registry.Source<LibraryItem>() {
+            @Override
+            public LibraryItem load(int ordinal) {
+                LibraryItem item = image.item(ordinal);
+                item.addListener(indexMaintainer);
+                return item;
+            }
+
+            @Override
+            public int ordinalOf(String id) {
+                return image.itemOrdinal(id);
+            }
+        });
+        users.addFromSource(image.userCount(), new Registry.Source<User>() {
+            @Override
+            public User load(int ordinal) {
+                User user = image.user(ordinal);
+                user.addListener(indexMaintainer);
+                return user;
+            }
+
+            @Override
+            public int ordinalOf(String id) {
+                return image.userOrdinal(id);
+            }
+        });
+        counters.itemsAdded("Book", image.bookCount());
+        counters.itemsAdded("Magazine", image.magazineCount());
+        availability.addRange(0, image.itemCount());
+        catalogIndexPending = image.itemCount() > 0;
+
+        image.restoreHistory(history, epochs.current());
+        for (int ordinal = 0; ordinal < image.userCount(); ordinal++) {
+            feeLedger.restoreCharged(ordinal, image.chargedCents(ordinal));
+        }
+        for (int i = 0; i < image.openRowCount(); i++) {
+            restoreOpenLoan(image.openRow(i));
+        }
+    }
+
+    /**
+     * Lends the item of a restored open row again, keeping the row.
+     */
+    private void restoreOpenLoan(int row) throws java.io.IOException {
+        BorrowRecord record = history.get(row);
+        if (record.getReturnDate() != null) {
+            throw new java.io.IOException("Snapshot lists returned row " + row + " as an open loan");
+        }
+        User user = record.getUser();
+        LibraryItem item = record.getItem();
+        int itemOrdinal = items.ordinalOf(item.getId());
+        OpenLoan loan = new OpenLoan(record);
+        if (openLoans.putIfAbsent(itemOrdinal, loan) != null || !user.borrowItem(item)) {
+            throw new java.io.IOException("Snapshot has conflicting open loans for item " + item.getId());
+        }
+        dueDateIndex.add(record);
+        loan.setRow(row);
+        if (record.getDueDate().toEpochDay() < feeLedger.dayAsEpochDay()) {
+            markOverdue(loan, ordinalOf(user));
+        }
+    }
+
+    /**
+     * Fills the search indexes with the items of the image the library was
+     * restored from, once, before anything reads or changes them.
+     */
+    private void ensureCatalogIndexed() {
+        if (catalogIndexPending) {
+            indexCatalog();
+        }
+    }
+
+    private void indexCatalog() {
+        synchronized (catalogLock) {
+            if (!catalogIndexPending) {
+                return;
+            }
+            List<LibraryItem> restored = items.asList().subList(0, image.itemCount());
+            titleIndex.addAll(0, restored);
+            authorIndex.addAll(0, restored);
+            publisherIndex.addAll(0, restored);
+            queryPlanner.addAll(0, restored);
+            catalogIndexPending = false;
+        }
+    }
+
+    /**
+     * Adds an already returned loan to the history without touching the
+     * user or the item. Used when loading a snapshot.
+     */
+    void restoreReturnedRecord(String recordId, long numericId, int userOrdinal, int itemOrdinal,
+                               java.time.LocalDate borrowDate, java.time.LocalDate dueDate, java.time.LocalDate returnDate) {
+        if (userOrdinal < 0 || userOrdinal >= users.size() || itemOrdinal < 0 || itemOrdinal >= items.size()) {
+            throw new IllegalArgumentException("Record refers to an unknown user or item: "
+                    + (numericId == BorrowRecord.NO_NUMERIC_ID ? recordId : Long.toString(numericId)));
+        }
+        history.append(recordId, numericId, userOrdinal, itemOrdinal, borrowDate, dueDate, returnDate, epochs.current());
+        feeLedger.loanReturned(userOrdinal, (int) dueDate.toEpochDay(), (int) returnDate.toEpochDay(), false);
+    }
+
+    /**
+     * Closes the open loan of an item with a given return date. Used when
+     * replaying the journal.
+     */
+    boolean replayReturn(int itemOrdinal, java.time.LocalDate returnDate) {
+        OpenLoan loan = openLoans.get(itemOrdinal);
+        if (loan == null) {
+            return false;
+        }
+        loan.record.markAsReturned(returnDate);
+        return true;
     }
 
     public String chainCallStart(User user, LibraryItem item) {
@@ -151,6 +1111,151 @@ public class Library {
     @Override
     public String toString() {
         return String.format("Library{name='%s', items=%d, users=%d, borrowRecords=%d}",
-                name, items.size(), users.size(), borrowRecords.size());
+                name, items.size(), users.size(), getBorrowRecordCount());
+    }
+
+    /**
+     * Loans closed while a snapshot is open, for that snapshot: it is
+     * registered before its epoch closes, so every loan open in it and
+     * closed later is added here. Loans closed in the snapshot's epoch or
+     * by another caller may be added too; the view sorts them out.
+     */
+    static final class ClosedLoans {
+        private OpenLoan[] loans = new OpenLoan[16];
+        private int size;
+
+        synchronized void add(OpenLoan loan) {
+            if (size == loans.length) {
+                loans = Arrays.copyOf(loans, size * 2);
+            }
+            loans[size++] = loan;
+        }
+
+        synchronized OpenLoan[] loans() {
+            return Arrays.copyOf(loans, size);
+        }
+    }
+
+    /**
+     * An open loan and its history row. The borrower appends the row after
+     * the user holds the item, so a return may close the loan before the row
+     * is known; whichever of the two comes second writes the return date.
+     * The return keeps its own epoch for that. The ledger state says whether
+     * the fee ledger counts the loan as overdue, so that the lender and
+     * advanceTo count it at most once.
+     */
+    private final class OpenLoan {
+        static final int LEDGER_PENDING = 0;
+        static final int LEDGER_OVERDUE = 1;
+        static final int LEDGER_CLOSED = 2;
+
+        final BorrowRecord record;
+        final java.util.concurrent.atomic.AtomicInteger ledgerState = new java.util.concurrent.atomic.AtomicInteger(LEDGER_PENDING);
+        volatile int row = -1;
+        private java.time.LocalDate returnDate;
+        private int returnEpoch;
+
+        OpenLoan(BorrowRecord record) {
+            this.record = record;
+        }
+
+        synchronized void setRow(int row) {
+            this.row = row;
+            if (returnDate != null) {
+                history.markReturned(row, returnDate, returnEpoch);
+            }
+        }
+
+        synchronized void setReturnDate(java.time.LocalDate returnDate, int epoch) {
+            this.returnDate = returnDate;
+            this.returnEpoch = epoch;
+            if (row >= 0) {
+                history.markReturned(row, returnDate, epoch);
+            }
+        }
+    }
+
+    /**
+     * Keeps the id registries and text indexes in step with setters on registered
+     * objects, closes open loans whenever a registered user returns an item and
+     * keeps the statistics counters current.
+     */
+    private final class IndexMaintainer implements ItemListener, UserListener {
+        @Override
+        public void onIdChange(LibraryItem item, String oldId, String newId) {
+            long position = -1;
+            synchronized (catalogLock) {
+                items.rename(oldId, newId);
+                LibraryJournal journal = Library.this.journal;
+                if (journal != null) {
+                    position = journal.appendRenameItem(items.ordinalOf(newId), newId);
+                }
+            }
+            awaitDurable(position);
+        }
+
+        @Override
+        public void onAttributeChange(LibraryItem item, String attribute, Object oldValue, Object newValue) {
+            ensureCatalogIndexed();
+            int ordinal = items.ordinalOf(item.getId());
+            if (LibraryItem.TITLE.equals(attribute)) {
+                titleIndex.update(ordinal, (String) oldValue, (String) newValue);
+                userReportCache.catalogChanged();
+            } else if (Book.AUTHOR.equals(attribute)) {
+                authorIndex.update(ordinal, (String) oldValue, (String) newValue);
+            } else if (Magazine.PUBLISHER.equals(attribute)) {
+                publisherIndex.update(ordinal, (String) oldValue, (String) newValue);
+            }
+            queryPlanner.onAttributeChange(ordinal, attribute, oldValue, newValue);
+        }
+
+        @Override
+        public void onAvailabilityChange(LibraryItem item, boolean available) {
+            availability.update(items.ordinalOf(item.getId()), item);
+        }
+
+        @Override
+        public void onIdChange(User user, String oldId, String newId) {
+            long position = -1;
+            synchronized (catalogLock) {
+                users.rename(oldId, newId);
+                LibraryJournal journal = Library.this.journal;
+                if (journal != null) {
+                    position = journal.appendRenameUser(users.ordinalOf(newId), newId);
+                }
+            }
+            awaitDurable(position);
+        }
+
+        @Override
+        public void onItemBorrowed(User user, LibraryItem item) {
+            updateLoanCount(user);
+        }
+
+        @Override
+        public void onItemReturned(User user, LibraryItem item) {
+            int itemOrdinal = items.ordinalOf(item.getId());
+            LibraryJournal journal = Library.this.journal;
+            if (itemOrdinal >= 0 && journal == null) {
+                closeLoan(user, itemOrdinal);
+            } else if (itemOrdinal >= 0) {
+                long position = -1;
+                synchronized (loanLock(itemOrdinal)) {
+                    BorrowRecord record = closeLoan(user, itemOrdinal);
+                    if (record != null) {
+                        position = journal.appendReturn(itemOrdinal, record.getReturnDate());
+                    }
+                }
+                awaitDurable(position);
+            }
+            updateLoanCount(user);
+        }
+
+        private void updateLoanCount(User user) {
+            int userOrdinal = users.ordinalOf(user.getUserId());
+            if (userOrdinal >= 0) {
+                counters.loanCountChanged(userOrdinal, () -> user.getBorrowedItems().size());
+            }
+        }
     }
 }
\ No newline at end of file
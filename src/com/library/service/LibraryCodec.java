@@ -0,0 +1,107 @@
+package com.library.service;
+
+import com.library.model.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary encoding of catalog items and users shared by the journal and the
+ * snapshot files. Each object starts with a one-byte type tag; strings may
+ * be null.
+ */
+final class LibraryCodec {
+    static final byte BOOK = 'B';
+    static final byte MAGAZINE = 'M';
+    static final byte STUDENT = 'S';
+    static final byte PROFESSOR = 'P';
+
+    private LibraryCodec() {
+    }
+
+    static void writeItem(DataOutput out, LibraryItem item) throws IOException {
+        if (item instanceof Book) {
+            Book book = (Book) item;
+            out.writeByte(BOOK);
+            writeCommon(out, item);
+            writeString(out, book.getAuthor());
+            writeString(out, book.getIsbn());
+            out.writeInt(book.getNumberOfPages());
+        } else if (item instanceof Magazine) {
+            Magazine magazine = (Magazine) item;
+            out.writeByte(MAGAZINE);
+            writeCommon(out, item);
+            out.writeInt(magazine.getIssueNumber());
+            writeString(out, magazine.getPublisher());
+        } else {
+            throw new IllegalArgumentException("Cannot encode item type: " + item.getClass().getName());
+        }
+    }
+
+    static LibraryItem readItem(DataInput in) throws IOException {
+        byte type = in.readByte();
+        String id = readString(in);
+        String title = readString(in);
+        int year = in.readInt();
+        switch (type) {
+            case BOOK:
+                return new Book(id, title, year, readString(in), readString(in), in.readInt());
+            case MAGAZINE:
+                return new Magazine(id, title, year, in.readInt(), readString(in));
+            default:
+                throw new IOException("Unknown item type tag: " + type);
+        }
+    }
+
+    static void writeUser(DataOutput out, User user) throws IOException {
+        if (user instanceof Student) {
+            out.writeByte(STUDENT);
+            writeUserCommon(out, user);
+            writeString(out, ((Student) user).getStudentId());
+        } else if (user instanceof Professor) {
+            out.writeByte(PROFESSOR);
+            writeUserCommon(out, user);
+            writeString(out, ((Professor) user).getDepartment());
+        } else {
+            throw new IllegalArgumentException("Cannot encode user type: " + user.getClass().getName());
+        }
+    }
+
+    static User readUser(DataInput in) throws IOException {
+        byte type = in.readByte();
+        String userId = readString(in);
+        String name = readString(in);
+        String email = readString(in);
+        switch (type) {
+            case STUDENT:
+                return new Student(userId, name, email, readString(in));
+            case PROFESSOR:
+                return new Professor(userId, name, email, readString(in));
+            default:
+                throw new IOException("Unknown user type tag: " + type);
+        }
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeCommon(DataOutput out, LibraryItem item) throws IOException {
+        writeString(out, item.getId());
+        writeString(out, item.getTitle());
+        out.writeInt(item.getPublicationYear());
+    }
+
+    private static void writeUserCommon(DataOutput out, User user) throws IOException {
+        writeString(out, user.getUserId());
+        writeString(out, user.getName());
+        writeString(out, user.getEmail());
+    }
+}
@@ -0,0 +1,112 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.LibraryItem;
+import com.library.model.Magazine;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Running totals that Library maintains as items, users and loans change,
+ * so LibraryStatistics can answer without scanning the catalog.
+ *
+ * Users are bucketed by how many items they currently hold; each bucket
+ * keeps user ordinals sorted, so the most active user is the first user of
+ * the highest non-empty bucket (ties go to the earliest registered user).
+ * Users holding nothing are in no bucket, so registering a user costs
+ * nothing here; when nobody holds anything the first user is the answer.
+ * Moves between buckets are serialized per user on a small set of striped
+ * locks.
+ */
+final class LibraryCounters {
+    private static final int LOCK_STRIPES = 64;
+
+    private final LongAdder books = new LongAdder();
+    private final LongAdder magazines = new LongAdder();
+    private final Map<String, LongAdder> itemsByType = new ConcurrentHashMap<>();
+    private final NavigableMap<Integer, NavigableSet<Integer>> usersByLoanCount = new ConcurrentSkipListMap<>();
+    private final Map<Integer, Integer> loanCountByUser = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    LibraryCounters() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    void itemAdded(LibraryItem item) {
+        if (item instanceof Book) {
+            books.increment();
+        } else if (item instanceof Magazine) {
+            magazines.increment();
+        }
+        itemsByType.computeIfAbsent(item.getItemType(), t -> new LongAdder()).increment();
+    }
+
+    /**
+     * Counts items without their objects, as restoring a snapshot image
+     * does. itemType is what their getItemType() returns.
+     */
+    void itemsAdded(String itemType, long count) {
+        if ("Book".equals(itemType)) {
+            books.add(count);
+        } else if ("Magazine".equals(itemType)) {
+            magazines.add(count);
+        }
+        itemsByType.computeIfAbsent(itemType, t -> new LongAdder()).add(count);
+    }
+
+    /**
+     * Moves a user to the bucket for its current loan count. The count is
+     * read under the user's stripe lock so concurrent updates for the same
+     * user cannot leave it in a stale bucket.
+     */
+    void loanCountChanged(int userOrdinal, IntSupplier currentCount) {
+        synchronized (locks[userOrdinal % LOCK_STRIPES]) {
+            int count = currentCount.getAsInt();
+            Integer previous = count == 0 ? loanCountByUser.remove(userOrdinal) : loanCountByUser.put(userOrdinal, count);
+            if (previous != null && previous == count) {
+                return;
+            }
+            if (previous != null) {
+                usersByLoanCount.get(previous).remove(userOrdinal);
+            }
+            if (count > 0) {
+                usersByLoanCount.computeIfAbsent(count, c -> new ConcurrentSkipListSet<>()).add(userOrdinal);
+            }
+        }
+    }
+
+    long getBooks() {
+        return books.sum();
+    }
+
+    long getMagazines() {
+        return magazines.sum();
+    }
+
+    long getItemsOfType(String itemType) {
+        LongAdder count = itemsByType.get(itemType);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Ordinal of the user holding the most items, or -1 if there are no users.
+     */
+    int mostActiveUserOrdinal(int userCount) {
+        for (NavigableSet<Integer> bucket : usersByLoanCount.descendingMap().values()) {
+            Iterator<Integer> it = bucket.iterator();
+            if (it.hasNext()) {
+                return it.next();
+            }
+        }
+        return userCount > 0 ? 0 : -1;
+    }
+}
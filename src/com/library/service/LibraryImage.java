@@ -0,0 +1,554 @@
+package com.library.service;
+
+import com.library.model.*;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A library snapshot laid out to be used where it lies: the file is
+ * memory-mapped and nothing in it is parsed up front.
+ *
+ * Every string is stored once in a string table and referred to by its
+ * index. Items and users are fixed-width records, so the one with a given
+ * ordinal is found by arithmetic and built only when the library first asks
+ * for it. An open-addressing table per registry maps ids to ordinals without
+ * building anything. The history is stored as the columns BorrowHistory
+ * keeps and is copied into it in bulk. The fees charged to each user and
+ * the rows of the open loans are stored as well, so that opening an image
+ * costs the users and the open loans rather than a pass over the history.
+ *
+ * Layout, big-endian: a header of HEADER_BYTES (magic and version as in the
+ * journal's snapshots, library name, item, user, row and string counts, book
+ * and magazine counts, and the offset of each section); the string offsets
+ * (stringCount + 1 file offsets, string i being the UTF-8 bytes between
+ * offsets i and i + 1) followed by the bytes; the item records; the user
+ * records; the item and user id tables (capacity, then per slot the id's
+ * hash and ordinal + 1, 0 if empty); the history columns (users as ordinal
+ * + 1, items, borrow, due and return days, record id strings, numeric ids);
+ * the charged fee cents of each user, by ordinal; the open rows, ascending;
+ * and a CRC32C of everything before it. Sections start at multiples of 8 and
+ * a file is at most 2 GB.
+ */
+final class LibraryImage {
+    static final int VERSION = 4;
+
+    private static final int HEADER_BYTES = 72;
+    // tag, id, title, year, author or publisher, isbn, pages or issue
+    private static final int ITEM_INTS = 7;
+    // tag, id, name, email, student id or department
+    private static final int USER_INTS = 5;
+    private static final int[] ITEM_STRINGS = {1, 2, 4, 5};
+    private static final int[] USER_STRINGS = {1, 2, 3, 4};
+    private static final int INT_COLUMNS = 6;
+
+    private final MappedByteBuffer data;
+    private final int nameRef;
+    private final int itemCount;
+    private final int userCount;
+    private final int rowCount;
+    private final int bookCount;
+    private final int magazineCount;
+    private final int stringsOffset;
+    private final int itemsOffset;
+    private final int usersOffset;
+    private final int itemIdsOffset;
+    private final int userIdsOffset;
+    private final int historyOffset;
+    private final int feesOffset;
+    private final int openRowsOffset;
+    private final int openRowCount;
+
+    private LibraryImage(MappedByteBuffer data, Path path) throws IOException {
+        this.data = data;
+        int length = data.capacity();
+        if (data.getInt(0) != LibraryJournal.SNAPSHOT_MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Not a library snapshot image: " + path);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data.slice(0, length - 4));
+        if (data.getInt(length - 4) != (int) crc.getValue()) {
+            throw new IOException("Snapshot checksum mismatch: " + path);
+        }
+        nameRef = data.getInt(8);
+        itemCount = data.getInt(12);
+        userCount = data.getInt(16);
+        rowCount = data.getInt(20);
+        bookCount = data.getInt(28);
+        magazineCount = data.getInt(32);
+        stringsOffset = data.getInt(36);
+        itemsOffset = data.getInt(40);
+        usersOffset = data.getInt(44);
+        itemIdsOffset = data.getInt(48);
+        userIdsOffset = data.getInt(52);
+        historyOffset = data.getInt(56);
+        feesOffset = data.getInt(60);
+        openRowsOffset = data.getInt(64);
+        openRowCount = data.getInt(68);
+        if (bookCount + magazineCount != itemCount || feesOffset != align(historyEnd(historyOffset, rowCount))
+                || openRowsOffset != align(feesOffset + 8L * userCount)
+                || openRowCount < 0 || openRowCount > rowCount || openRowsOffset + 4L * openRowCount != length - 4) {
+            throw new IOException("Corrupt snapshot image: " + path);
+        }
+    }
+
+    /**
+     * Maps an image file. Only the checksum is computed; items, users and
+     * strings are read when they are asked for.
+     */
+    static LibraryImage map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_BYTES + 4 || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a library snapshot image: " + path);
+            }
+            return new LibraryImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), path);
+        }
+    }
+
+    String name() {
+        return string(nameRef);
+    }
+
+    int itemCount() {
+        return itemCount;
+    }
+
+    int userCount() {
+        return userCount;
+    }
+
+    int rowCount() {
+        return rowCount;
+    }
+
+    int bookCount() {
+        return bookCount;
+    }
+
+    int magazineCount() {
+        return magazineCount;
+    }
+
+    int openRowCount() {
+        return openRowCount;
+    }
+
+    /**
+     * The row of the index-th open loan; open rows ascend.
+     */
+    int openRow(int index) {
+        return data.getInt(openRowsOffset + index * 4);
+    }
+
+    /**
+     * Fees charged to the user for loans returned late, as the ledger had
+     * them when the image was written.
+     */
+    long chargedCents(int userOrdinal) {
+        return data.getLong(feesOffset + userOrdinal * 8);
+    }
+
+    LibraryItem item(int ordinal) {
+        int record = itemsOffset + ordinal * ITEM_INTS * 4;
+        String id = string(data.getInt(record + 4));
+        String title = string(data.getInt(record + 8));
+        int year = data.getInt(record + 12);
+        int tag = data.getInt(record);
+        switch (tag) {
+            case LibraryCodec.BOOK:
+                return new Book(id, title, year, string(data.getInt(record + 16)), string(data.getInt(record + 20)),
+                        data.getInt(record + 24));
+            case LibraryCodec.MAGAZINE:
+                return new Magazine(id, title, year, data.getInt(record + 24), string(data.getInt(record + 16)));
+            default:
+                throw new IllegalStateException("Unknown item type tag " + tag + " for item " + ordinal);
+        }
+    }
+
+    User user(int ordinal) {
+        int record = usersOffset + ordinal * USER_INTS * 4;
+        String userId = string(data.getInt(record + 4));
+        String name = string(data.getInt(record + 8));
+        String email = string(data.getInt(record + 12));
+        int tag = data.getInt(record);
+        switch (tag) {
+            case LibraryCodec.STUDENT:
+                return new Student(userId, name, email, string(data.getInt(record + 16)));
+            case LibraryCodec.PROFESSOR:
+                return new Professor(userId, name, email, string(data.getInt(record + 16)));
+            default:
+                throw new IllegalStateException("Unknown user type tag " + tag + " for user " + ordinal);
+        }
+    }
+
+    /**
+     * Ordinal of the item whose id was the given one when the image was
+     * written, or -1.
+     */
+    int itemOrdinal(String id) {
+        return lookup(itemIdsOffset, itemsOffset, ITEM_INTS, id);
+    }
+
+    int userOrdinal(String id) {
+        return lookup(userIdsOffset, usersOffset, USER_INTS, id);
+    }
+
+    /**
+     * Copies the history columns into an empty history.
+     */
+    void restoreHistory(BorrowHistory history, int epoch) {
+        history.restore(rowCount, intColumn(0), intColumn(1), intColumn(2), intColumn(3), intColumn(4),
+                data.slice(historyOffset + INT_COLUMNS * columnBytes(rowCount), rowCount * 8).asLongBuffer(),
+                intColumn(5), this::string, epoch);
+    }
+
+    String string(int ref) {
+        if (ref < 0) {
+            return null;
+        }
+        int start = data.getInt(stringsOffset + ref * 4);
+        byte[] bytes = new byte[data.getInt(stringsOffset + ref * 4 + 4) - start];
+        data.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private IntBuffer intColumn(int column) {
+        return data.slice(historyOffset + column * columnBytes(rowCount), rowCount * 4).asIntBuffer();
+    }
+
+    private int lookup(int table, int records, int recordInts, String id) {
+        if (id == null) {
+            return -1;
+        }
+        int mask = data.getInt(table) - 1;
+        int hash = id.hashCode();
+        byte[] utf8 = null;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table + 4 + slot * 8;
+            int ordinal = data.getInt(entry + 4) - 1;
+            if (ordinal < 0) {
+                return -1;
+            }
+            if (data.getInt(entry) == hash) {
+                if (utf8 == null) {
+                    utf8 = id.getBytes(StandardCharsets.UTF_8);
+                }
+                if (stringEquals(data.getInt(records + ordinal * recordInts * 4 + 4), utf8)) {
+                    return ordinal;
+                }
+            }
+        }
+    }
+
+    private boolean stringEquals(int ref, byte[] utf8) {
+        int start = data.getInt(stringsOffset + ref * 4);
+        if (data.getInt(stringsOffset + ref * 4 + 4) - start != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < utf8.length; i++) {
+            if (data.get(start + i) != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the fields of the items an image is written from, null elements
+     * being items never loaded from the image the library came from. Call
+     * while catalog changes are held off; the copy is encoded by write.
+     */
+    static Records captureItems(List<LibraryItem> items) {
+        Records records = new Records(items.size(), ITEM_INTS);
+        for (int ordinal = 0; ordinal < records.count; ordinal++) {
+            LibraryItem item = items.get(ordinal);
+            if (item != null) {
+                captureItem(item, records, ordinal * ITEM_INTS);
+            }
+        }
+        return records;
+    }
+
+    static Records captureUsers(List<User> users) {
+        Records records = new Records(users.size(), USER_INTS);
+        for (int ordinal = 0; ordinal < records.count; ordinal++) {
+            User user = users.get(ordinal);
+            if (user != null) {
+                captureUser(user, records, ordinal * USER_INTS);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Writes the captured state as an image. Records not captured were never
+     * loaded from the image the library came from, and are copied from it.
+     */
+    static void write(LibraryJournal.LibraryState state, Path path) throws IOException {
+        StringDictionary strings = new StringDictionary();
+        int nameRef = strings.encode(state.name);
+        int itemCount = state.items.count;
+        int userCount = state.users.count;
+        int rowCount = state.recordIds.length;
+        int[] items = state.items.encode(ITEM_STRINGS, strings, state.image,
+                state.image == null ? 0 : state.image.itemsOffset);
+        int bookCount = 0;
+        for (int ordinal = 0; ordinal < itemCount; ordinal++) {
+            bookCount += items[ordinal * ITEM_INTS] == LibraryCodec.BOOK ? 1 : 0;
+        }
+        int[] users = state.users.encode(USER_STRINGS, strings, state.image,
+                state.image == null ? 0 : state.image.usersOffset);
+        int[] recordIdRefs = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            recordIdRefs[row] = state.numericIds[row] == BorrowRecord.NO_NUMERIC_ID ? strings.encode(state.recordIds[row]) : -1;
+        }
+        int[] itemIds = idTable(items, ITEM_INTS, itemCount, strings);
+        int[] userIds = idTable(users, USER_INTS, userCount, strings);
+
+        int stringCount = strings.size();
+        byte[][] bytes = new byte[stringCount][];
+        long stringBytes = 0;
+        for (int code = 0; code < stringCount; code++) {
+            bytes[code] = strings.get(code).getBytes(StandardCharsets.UTF_8);
+            stringBytes += bytes[code].length;
+        }
+        long stringsOffset = HEADER_BYTES;
+        long itemsOffset = align(stringsOffset + 4L * (stringCount + 1) + stringBytes);
+        long usersOffset = align(itemsOffset + 4L * items.length);
+        long itemIdsOffset = align(usersOffset + 4L * users.length);
+        long userIdsOffset = align(itemIdsOffset + 4L * itemIds.length);
+        long historyOffset = align(userIdsOffset + 4L * userIds.length);
+        long feesOffset = align(historyOffset + INT_COLUMNS * align(4L * rowCount) + 8L * rowCount);
+        long openRowsOffset = align(feesOffset + 8L * userCount);
+        int openRowCount = state.openRows.length;
+        if (openRowsOffset + 4L * openRowCount + 4 > Integer.MAX_VALUE) {
+            throw new IOException("Library too large for a snapshot image");
+        }
+
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream file = new FileOutputStream(path.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+            out.writeInt(LibraryJournal.SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nameRef);
+            out.writeInt(itemCount);
+            out.writeInt(userCount);
+            out.writeInt(rowCount);
+            out.writeInt(stringCount);
+            out.writeInt(bookCount);
+            out.writeInt(itemCount - bookCount);
+            out.writeInt((int) stringsOffset);
+            out.writeInt((int) itemsOffset);
+            out.writeInt((int) usersOffset);
+            out.writeInt((int) itemIdsOffset);
+            out.writeInt((int) userIdsOffset);
+            out.writeInt((int) historyOffset);
+            out.writeInt((int) feesOffset);
+            out.writeInt((int) openRowsOffset);
+            out.writeInt(openRowCount);
+            pad(out, stringsOffset);
+            int position = (int) (stringsOffset + 4L * (stringCount + 1));
+            for (int code = 0; code < stringCount; code++) {
+                out.writeInt(position);
+                position += bytes[code].length;
+            }
+            out.writeInt(position);
+            for (byte[] string : bytes) {
+                out.write(string);
+            }
+            pad(out, itemsOffset);
+            writeInts(out, items, items.length);
+            pad(out, usersOffset);
+            writeInts(out, users, users.length);
+            pad(out, itemIdsOffset);
+            writeInts(out, itemIds, itemIds.length);
+            pad(out, userIdsOffset);
+            writeInts(out, userIds, userIds.length);
+            pad(out, historyOffset);
+            int[][] columns = {null, state.itemOrdinals, state.borrowDays, state.dueDays, state.returnDays, recordIdRefs};
+            for (int row = 0; row < rowCount; row++) {
+                out.writeInt(state.userOrdinals[row] + 1);
+            }
+            for (int column = 1; column < INT_COLUMNS; column++) {
+                pad(out, historyOffset + column * align(4L * rowCount));
+                writeInts(out, columns[column], rowCount);
+            }
+            pad(out, historyOffset + INT_COLUMNS * align(4L * rowCount));
+            for (int row = 0; row < rowCount; row++) {
+                out.writeLong(state.numericIds[row]);
+            }
+            pad(out, feesOffset);
+            for (int ordinal = 0; ordinal < userCount; ordinal++) {
+                out.writeLong(state.chargedCents[ordinal]);
+            }
+            pad(out, openRowsOffset);
+            writeInts(out, state.openRows, openRowCount);
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Copies a record of this image into target at the same ordinal,
+     * re-encoding its strings in the dictionary of the image being written.
+     */
+    private void copyRecord(int records, int ordinal, int recordInts, int[] stringFields, StringDictionary strings,
+                            int[] target) {
+        int record = records + ordinal * recordInts * 4;
+        int offset = ordinal * recordInts;
+        for (int field = 0; field < recordInts; field++) {
+            target[offset + field] = data.getInt(record + field * 4);
+        }
+        for (int field : stringFields) {
+            target[offset + field] = strings.encode(string(target[offset + field]));
+        }
+    }
+
+    private static void captureItem(LibraryItem item, Records records, int record) {
+        int[] fields = records.fields;
+        String[] strings = records.strings;
+        strings[record + 1] = item.getId();
+        strings[record + 2] = item.getTitle();
+        fields[record + 3] = item.getPublicationYear();
+        if (item instanceof Book) {
+            Book book = (Book) item;
+            fields[record] = LibraryCodec.BOOK;
+            strings[record + 4] = book.getAuthor();
+            strings[record + 5] = book.getIsbn();
+            fields[record + 6] = book.getNumberOfPages();
+        } else if (item instanceof Magazine) {
+            Magazine magazine = (Magazine) item;
+            fields[record] = LibraryCodec.MAGAZINE;
+            strings[record + 4] = magazine.getPublisher();
+            fields[record + 6] = magazine.getIssueNumber();
+        } else {
+            throw new IllegalArgumentException("Cannot encode item type: " + item.getClass().getName());
+        }
+    }
+
+    private static void captureUser(User user, Records records, int record) {
+        String[] strings = records.strings;
+        strings[record + 1] = user.getUserId();
+        strings[record + 2] = user.getName();
+        strings[record + 3] = user.getEmail();
+        if (user instanceof Student) {
+            records.fields[record] = LibraryCodec.STUDENT;
+            strings[record + 4] = ((Student) user).getStudentId();
+        } else if (user instanceof Professor) {
+            records.fields[record] = LibraryCodec.PROFESSOR;
+            strings[record + 4] = ((Professor) user).getDepartment();
+        } else {
+            throw new IllegalArgumentException("Cannot encode user type: " + user.getClass().getName());
+        }
+    }
+
+    /**
+     * The id table of count records, as written: capacity, then a hash and
+     * ordinal + 1 per slot.
+     */
+    private static int[] idTable(int[] records, int recordInts, int count, StringDictionary strings) {
+        int capacity = Integer.highestOneBit(Math.max(2, count * 2 - 1)) << 1;
+        int[] table = new int[1 + capacity * 2];
+        table[0] = capacity;
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            int hash = strings.get(records[ordinal * recordInts + 1]).hashCode();
+            int slot = mix(hash) & (capacity - 1);
+            while (table[1 + slot * 2 + 1] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            table[1 + slot * 2] = hash;
+            table[1 + slot * 2 + 1] = ordinal + 1;
+        }
+        return table;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < count; i++) {
+            if (!buffer.hasRemaining()) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putInt(values[i]);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static void pad(DataOutputStream out, long offset) throws IOException {
+        while (out.size() < offset) {
+            out.writeByte(0);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static int columnBytes(int rows) {
+        return (int) align(4L * rows);
+    }
+
+    private static int historyEnd(int historyOffset, int rows) {
+        return historyOffset + INT_COLUMNS * columnBytes(rows) + rows * 8;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Fixed-width records whose string fields are still strings, as captured
+     * from the library. A record whose tag is UNCAPTURED is taken from the
+     * image instead.
+     */
+    static final class Records {
+        private static final int UNCAPTURED = 0;
+
+        final int count;
+        private final int recordInts;
+        private final int[] fields;
+        private final String[] strings;
+
+        private Records(int count, int recordInts) {
+            this.count = count;
+            this.recordInts = recordInts;
+            this.fields = new int[count * recordInts];
+            this.strings = new String[count * recordInts];
+        }
+
+        /**
+         * The records as written: string fields replaced by their codes in
+         * the dictionary, uncaptured records copied from the image.
+         */
+        int[] encode(int[] stringFields, StringDictionary dictionary, LibraryImage image, int imageRecords) {
+            int[] encoded = new int[fields.length];
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                int record = ordinal * recordInts;
+                if (fields[record] == UNCAPTURED) {
+                    image.copyRecord(imageRecords, ordinal, recordInts, stringFields, dictionary, encoded);
+                    continue;
+                }
+                System.arraycopy(fields, record, encoded, record, recordInts);
+                for (int field : stringFields) {
+                    encoded[record + field] = dictionary.encode(strings[record + field]);
+                }
+            }
+            return encoded;
+        }
+    }
+}
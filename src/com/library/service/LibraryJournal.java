@@ -0,0 +1,581 @@
+package com.library.service;
+
+import com.library.model.BorrowRecord;
+import com.library.model.LibraryItem;
+import com.library.model.User;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only write-ahead journal for a Library, with compacted snapshots.
+ *
+ * Every catalog addition, id change, borrow and return is appended to a
+ * memory-mapped segment file as a length- and CRC-prefixed record. Appends
+ * only copy bytes into the mapping; a background thread forces the mapping to
+ * disk every millisecond, so one fsync covers every record written in that
+ * window (group commit). With {@link Durability#GROUP_COMMIT} the writer waits
+ * for the flush that covers its record, after releasing its locks; with
+ * {@link Durability#ASYNC} it does not wait.
+ *
+ * {@link #checkpoint()} writes the whole library to a snapshot file and drops
+ * the segments it covers, so recovery loads the newest snapshot and replays
+ * only the journal tail written since. Snapshots are written as a
+ * LibraryImage, which recovery maps instead of reading: items and users are
+ * built on first use and the history is copied in as columns. Snapshots of
+ * versions 1 and 2 are still read, by rebuilding every object. Loans are journaled by item and user
+ * ordinal, which replay reproduces exactly, so later id changes do not
+ * affect them. Attribute edits made through setters are not journaled.
+ *
+ * Files in the directory: {@code journal-<position>.log} segments and
+ * {@code snapshot-<position>.bin}, where position is the journal byte offset
+ * at which the file starts (for a snapshot: the offset it is complete up to).
+ */
+public final class LibraryJournal implements AutoCloseable {
+
+    public enum Durability {
+        /** Appends return as soon as the record is in the mapped segment. */
+        ASYNC,
+        /** Appends wait for the group fsync that covers their record. */
+        GROUP_COMMIT
+    }
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final long FLUSH_INTERVAL_MILLIS = 1;
+    private static final int RECORD_HEADER = 8;
+
+    private static final byte ADD_ITEM = 1;
+    private static final byte ADD_USER = 2;
+    private static final byte RENAME_ITEM = 3;
+    private static final byte RENAME_USER = 4;
+    private static final byte BORROW = 5;
+    private static final byte RETURN = 6;
+    private static final byte BORROW_NUMERIC = 7;
+
+    static final int SNAPSHOT_MAGIC = 0x4C424A53;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private final Path directory;
+    private final Durability durability;
+    private final int segmentSize;
+    private final Library library;
+    private final Object appendLock = new Object();
+    private final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+    private final Thread flusher;
+
+    // guarded by appendLock
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long writePosition;
+
+    private volatile long durablePosition;
+    private volatile boolean closed;
+
+    private LibraryJournal(Path directory, Durability durability, int segmentSize, Library library, long position) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentSize = segmentSize;
+        this.library = library;
+        this.writePosition = position;
+        this.durablePosition = position;
+        openSegment(position);
+        this.flusher = new Thread(this::flushLoop, "library-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Recovers the library stored in the directory (newest snapshot plus the
+     * journal written after it) and returns a journal attached to it. An empty
+     * directory yields a new, empty library with the given name.
+     */
+    public static LibraryJournal open(Path directory, String libraryName, Durability durability) throws IOException {
+        return open(directory, libraryName, durability, DEFAULT_SEGMENT_SIZE);
+    }
+
+    static LibraryJournal open(Path directory, String libraryName, Durability durability, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        List<Long> snapshots = positions(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        Library library;
+        long position = 0;
+        if (snapshots.isEmpty()) {
+            library = new Library(libraryName);
+        } else {
+            position = snapshots.get(snapshots.size() - 1);
+            library = readSnapshot(directory.resolve(SNAPSHOT_PREFIX + format(position) + SNAPSHOT_SUFFIX));
+        }
+        for (long start : positions(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (start >= position) {
+                position = replaySegment(directory.resolve(SEGMENT_PREFIX + format(start) + SEGMENT_SUFFIX), start, library);
+            }
+        }
+        LibraryJournal journal = new LibraryJournal(directory, durability, segmentSize, library, position);
+        library.attachJournal(journal);
+        return journal;
+    }
+
+    public Library getLibrary() {
+        return library;
+    }
+
+    /**
+     * Byte offset just past the last appended record.
+     */
+    public long position() {
+        synchronized (appendLock) {
+            return writePosition;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the library and deletes the journal segments and
+     * older snapshots it makes redundant. Loans and catalog changes are held
+     * off only while the state is captured and the journal is rolled to a new
+     * segment; the snapshot file is written after they resume.
+     */
+    public void checkpoint() throws IOException {
+        LibraryState[] captured = new LibraryState[1];
+        long[] position = new long[1];
+        IOException[] failure = new IOException[1];
+        library.runExclusive(() -> {
+            captured[0] = library.captureState();
+            synchronized (appendLock) {
+                try {
+                    roll();
+                    position[0] = writePosition;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        Path target = directory.resolve(SNAPSHOT_PREFIX + format(position[0]) + SNAPSHOT_SUFFIX);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        LibraryImage.write(captured[0], temp);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (long start : positions(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (start < position[0]) {
+                Files.deleteIfExists(directory.resolve(SEGMENT_PREFIX + format(start) + SEGMENT_SUFFIX));
+            }
+        }
+        for (long start : positions(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (start < position[0]) {
+                Files.deleteIfExists(directory.resolve(SNAPSHOT_PREFIX + format(start) + SNAPSHOT_SUFFIX));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        library.attachJournal(null);
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            segment.force();
+            durablePosition = writePosition;
+            channel.close();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    long appendAddItem(LibraryItem item) {
+        Encoder encoder = encoders.get().start(ADD_ITEM);
+        try {
+            LibraryCodec.writeItem(encoder.data, item);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return append(encoder);
+    }
+
+    long appendAddUser(User user) {
+        Encoder encoder = encoders.get().start(ADD_USER);
+        try {
+            LibraryCodec.writeUser(encoder.data, user);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return append(encoder);
+    }
+
+    long appendRenameItem(int itemOrdinal, String newId) {
+        return appendRename(RENAME_ITEM, itemOrdinal, newId);
+    }
+
+    long appendRenameUser(int userOrdinal, String newId) {
+        return appendRename(RENAME_USER, userOrdinal, newId);
+    }
+
+    long appendBorrow(int itemOrdinal, int userOrdinal, BorrowRecord record) {
+        long numericId = record.getNumericRecordId();
+        Encoder encoder = encoders.get().start(numericId == BorrowRecord.NO_NUMERIC_ID ? BORROW : BORROW_NUMERIC);
+        try {
+            encoder.data.writeInt(itemOrdinal);
+            encoder.data.writeInt(userOrdinal);
+            if (numericId == BorrowRecord.NO_NUMERIC_ID) {
+                LibraryCodec.writeString(encoder.data, record.getRecordId());
+            } else {
+                encoder.data.writeLong(numericId);
+            }
+            encoder.data.writeLong(record.getBorrowDate().toEpochDay());
+            encoder.data.writeLong(record.getDueDate().toEpochDay());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return append(encoder);
+    }
+
+    long appendReturn(int itemOrdinal, LocalDate returnDate) {
+        Encoder encoder = encoders.get().start(RETURN);
+        try {
+            encoder.data.writeInt(itemOrdinal);
+            encoder.data.writeLong(returnDate.toEpochDay());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return append(encoder);
+    }
+
+    /**
+     * Blocks until everything up to {@code position} is on disk, when the
+     * journal runs in group-commit mode. Returns at once otherwise.
+     */
+    void awaitDurable(long position) {
+        if (durability != Durability.GROUP_COMMIT || position <= durablePosition) {
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (this) {
+            while (position > durablePosition && !closed) {
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long appendRename(byte type, int ordinal, String newId) {
+        Encoder encoder = encoders.get().start(type);
+        try {
+            encoder.data.writeInt(ordinal);
+            LibraryCodec.writeString(encoder.data, newId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return append(encoder);
+    }
+
+    private long append(Encoder encoder) {
+        int length = encoder.bytes.size();
+        byte[] payload = encoder.bytes.buffer();
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, length);
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            if (segment.remaining() < RECORD_HEADER + length) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (segment.remaining() < RECORD_HEADER + length) {
+                    throw new IllegalArgumentException("Journal record larger than a segment: " + length + " bytes");
+                }
+            }
+            segment.putInt(length);
+            segment.putInt((int) crc.getValue());
+            segment.put(payload, 0, length);
+            writePosition += RECORD_HEADER + length;
+            return writePosition;
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            synchronized (this) {
+                try {
+                    wait(FLUSH_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                }
+            }
+            MappedByteBuffer current;
+            long target;
+            synchronized (appendLock) {
+                if (closed) {
+                    return;
+                }
+                current = segment;
+                target = writePosition;
+            }
+            if (target > durablePosition) {
+                current.force();
+                synchronized (this) {
+                    durablePosition = Math.max(durablePosition, target);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // requires appendLock
+    private void roll() throws IOException {
+        segment.force();
+        channel.close();
+        openSegment(writePosition);
+    }
+
+    // requires appendLock (or the constructor)
+    private void openSegment(long start) throws IOException {
+        Path path = directory.resolve(SEGMENT_PREFIX + format(start) + SEGMENT_SUFFIX);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    /**
+     * Applies every intact record of one segment and returns the position
+     * just past the last one. A zero length or CRC mismatch marks the end of
+     * what was written before the crash.
+     */
+    private static long replaySegment(Path path, long start, Library library) throws IOException {
+        long position = start;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                CRC32C crc = new CRC32C();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(library, new DataInputStream(new ByteArrayInputStream(payload)), position);
+                position += RECORD_HEADER + length;
+            }
+        }
+        return position;
+    }
+
+    private static void apply(Library library, DataInputStream in, long position) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case ADD_ITEM:
+                library.addItem(LibraryCodec.readItem(in));
+                break;
+            case ADD_USER:
+                library.addUser(LibraryCodec.readUser(in));
+                break;
+            case RENAME_ITEM:
+                library.getItem(in.readInt()).setId(LibraryCodec.readString(in));
+                break;
+            case RENAME_USER:
+                library.getUser(in.readInt()).setUserId(LibraryCodec.readString(in));
+                break;
+            case BORROW: {
+                LibraryItem item = library.getItem(in.readInt());
+                User user = library.getUser(in.readInt());
+                String recordId = LibraryCodec.readString(in);
+                LocalDate borrowDate = LocalDate.ofEpochDay(in.readLong());
+                LocalDate dueDate = LocalDate.ofEpochDay(in.readLong());
+                if (!library.borrowItem(user, item, recordId, borrowDate, dueDate)) {
+                    throw new IOException("Journal replay: borrow of " + item.getId() + " failed at position " + position);
+                }
+                break;
+            }
+            case BORROW_NUMERIC: {
+                LibraryItem item = library.getItem(in.readInt());
+                User user = library.getUser(in.readInt());
+                long recordId = in.readLong();
+                LocalDate borrowDate = LocalDate.ofEpochDay(in.readLong());
+                LocalDate dueDate = LocalDate.ofEpochDay(in.readLong());
+                if (!library.borrowItem(user, item, recordId, borrowDate, dueDate)) {
+                    throw new IOException("Journal replay: borrow of " + item.getId() + " failed at position " + position);
+                }
+                break;
+            }
+            case RETURN: {
+                int itemOrdinal = in.readInt();
+                LocalDate returnDate = LocalDate.ofEpochDay(in.readLong());
+                if (!library.replayReturn(itemOrdinal, returnDate)) {
+                    throw new IOException("Journal replay: no open loan for item ordinal " + itemOrdinal + " at position " + position);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type + " at position " + position);
+        }
+    }
+
+    private static Library readSnapshot(Path path) throws IOException {
+        int version;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            in.readInt();
+            version = in.readInt();
+        }
+        if (version == LibraryImage.VERSION) {
+            return Library.restore(LibraryImage.map(path));
+        }
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16), crc))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a library snapshot: " + path);
+            }
+            in.readInt();
+            // version 1 has only String record ids
+            if (version != 1 && version != 2) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + path);
+            }
+            Library library = new Library(LibraryCodec.readString(in));
+            int itemCount = in.readInt();
+            for (int i = 0; i < itemCount; i++) {
+                library.addItem(LibraryCodec.readItem(in));
+            }
+            int userCount = in.readInt();
+            for (int i = 0; i < userCount; i++) {
+                library.addUser(LibraryCodec.readUser(in));
+            }
+            int recordCount = in.readInt();
+            for (int i = 0; i < recordCount; i++) {
+                int itemOrdinal = in.readInt();
+                int userOrdinal = in.readInt();
+                long numericId = version == 1 ? BorrowRecord.NO_NUMERIC_ID : in.readLong();
+                String recordId = numericId == BorrowRecord.NO_NUMERIC_ID ? LibraryCodec.readString(in) : null;
+                LocalDate borrowDate = LocalDate.ofEpochDay(in.readLong());
+                LocalDate dueDate = LocalDate.ofEpochDay(in.readLong());
+                long returnDay = in.readLong();
+                if (returnDay == Long.MIN_VALUE) {
+                    LibraryItem item = library.getItem(itemOrdinal);
+                    User user = library.getUser(userOrdinal);
+                    boolean lent = numericId == BorrowRecord.NO_NUMERIC_ID
+                            ? library.borrowItem(user, item, recordId, borrowDate, dueDate)
+                            : library.borrowItem(user, item, numericId, borrowDate, dueDate);
+                    if (!lent) {
+                        throw new IOException("Snapshot has conflicting open loans for item " + item.getId());
+                    }
+                } else {
+                    library.restoreReturnedRecord(recordId, numericId, userOrdinal, itemOrdinal, borrowDate, dueDate,
+                            LocalDate.ofEpochDay(returnDay));
+                }
+            }
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Snapshot checksum mismatch: " + path);
+            }
+            return library;
+        }
+    }
+
+    private static List<Long> positions(Path directory, String prefix, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(prefix) && n.endsWith(suffix))
+                    .map(n -> Long.parseLong(n.substring(prefix.length(), n.length() - suffix.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String format(long position) {
+        return String.format("%020d", position);
+    }
+
+    /**
+     * Per-thread scratch buffer that records are encoded into before the
+     * append lock is taken.
+     */
+    private static final class Encoder {
+        final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+
+        Encoder start(byte type) {
+            bytes.reset();
+            try {
+                data.writeByte(type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+    }
+
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Point-in-time copy of what a snapshot needs, captured while loans and
+     * catalog changes are held off. Items and users not yet built from the
+     * image the library was restored from are left uncaptured.
+     */
+    static final class LibraryState {
+        final String name;
+        final LibraryImage.Records items;
+        final LibraryImage.Records users;
+        final LibraryImage image;
+        final String[] recordIds;
+        final long[] numericIds;
+        final int[] itemOrdinals;
+        final int[] userOrdinals;
+        final int[] borrowDays;
+        final int[] dueDays;
+        final int[] returnDays;
+        final long[] chargedCents;
+        int[] openRows;
+
+        LibraryState(String name, LibraryImage.Records items, LibraryImage.Records users, LibraryImage image, int recordCount) {
+            this.name = name;
+            this.items = items;
+            this.users = users;
+            this.image = image;
+            this.recordIds = new String[recordCount];
+            this.numericIds = new long[recordCount];
+            this.itemOrdinals = new int[recordCount];
+            this.userOrdinals = new int[recordCount];
+            this.borrowDays = new int[recordCount];
+            this.dueDays = new int[recordCount];
+            this.returnDays = new int[recordCount];
+            this.chargedCents = new long[users.count];
+        }
+    }
+}
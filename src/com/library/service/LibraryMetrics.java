@@ -0,0 +1,236 @@
+package com.library.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Outcome counters and latency histograms for the main Library operations.
+ * Created by Library.enableMetrics; while metrics are disabled the library
+ * holds no instance and the operations skip timing altogether.
+ *
+ * Counters are LongAdders and latencies go to a LatencyHistogram per
+ * operation, so recording costs two clock reads and a few uncontended
+ * atomic adds. The figures can be pulled as text with snapshot() or read
+ * over JMX after register(), as read-only attributes named
+ * "operation.figure", e.g. "borrow.success" or "findByTitle.p99Nanos".
+ */
+public final class LibraryMetrics implements DynamicMBean {
+    public enum Operation {
+        BORROW("borrow"),
+        RETURN("return"),
+        BORROW_MULTIPLE("borrowMultiple"),
+        FIND_BY_TITLE("findByTitle"),
+        USER_REPORT("userReport"),
+        LIBRARY_REPORT("libraryReport");
+
+        private final String attributeName;
+
+        Operation(String attributeName) {
+            this.attributeName = attributeName;
+        }
+
+        public String getAttributeName() {
+            return attributeName;
+        }
+    }
+
+    public enum Outcome {
+        SUCCESS("success"),
+        FAILURE("failure"),
+        LIMIT_REACHED("limitReached"),
+        UNAVAILABLE("unavailable");
+
+        private final String attributeName;
+
+        Outcome(String attributeName) {
+            this.attributeName = attributeName;
+        }
+
+        public String getAttributeName() {
+            return attributeName;
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    private final LongAdder[][] outcomes = new LongAdder[OPERATIONS.length][OUTCOMES.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final Map<String, LongSupplier> attributes = new LinkedHashMap<>();
+    private final MBeanInfo info;
+
+    LibraryMetrics() {
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+        for (Operation operation : OPERATIONS) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            latencies[operation.ordinal()] = histogram;
+            for (Outcome outcome : OUTCOMES) {
+                LongAdder adder = new LongAdder();
+                outcomes[operation.ordinal()][outcome.ordinal()] = adder;
+                attributes.put(operation.attributeName + "." + outcome.attributeName, adder::sum);
+            }
+            String prefix = operation.attributeName + ".";
+            attributes.put(prefix + "count", histogram::getCount);
+            attributes.put(prefix + "meanNanos", () -> Math.round(histogram.getMeanNanos()));
+            attributes.put(prefix + "p50Nanos", () -> histogram.getValueAtPercentile(50));
+            attributes.put(prefix + "p90Nanos", () -> histogram.getValueAtPercentile(90));
+            attributes.put(prefix + "p99Nanos", () -> histogram.getValueAtPercentile(99));
+            attributes.put(prefix + "p999Nanos", () -> histogram.getValueAtPercentile(99.9));
+            attributes.put(prefix + "maxNanos", histogram::getMaxNanos);
+        }
+        for (String name : attributes.keySet()) {
+            attributeInfos.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears all counters and histograms",
+                null, "void", MBeanOperationInfo.ACTION);
+        this.info = new MBeanInfo(getClass().getName(), "Library operation metrics",
+                attributeInfos.toArray(new MBeanAttributeInfo[0]), null,
+                new MBeanOperationInfo[] {reset}, null);
+    }
+
+    /**
+     * Records one call that started at startNanos (a System.nanoTime value).
+     */
+    public void record(Operation operation, Outcome outcome, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        outcomes[operation.ordinal()][outcome.ordinal()].increment();
+    }
+
+    /**
+     * Records the latency of one call without counting an outcome.
+     */
+    public void recordLatency(Operation operation, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Counts an outcome without a latency, e.g. for each item of a
+     * borrowMultipleItems call.
+     */
+    public void count(Operation operation, Outcome outcome) {
+        outcomes[operation.ordinal()][outcome.ordinal()].increment();
+    }
+
+    public long getCount(Operation operation, Outcome outcome) {
+        return outcomes[operation.ordinal()][outcome.ordinal()].sum();
+    }
+
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public void reset() {
+        for (Operation operation : OPERATIONS) {
+            latencies[operation.ordinal()].reset();
+            for (Outcome outcome : OUTCOMES) {
+                outcomes[operation.ordinal()][outcome.ordinal()].reset();
+            }
+        }
+    }
+
+    /**
+     * One line per operation with its outcome counts and latency
+     * percentiles in microseconds.
+     */
+    public String snapshot() {
+        StringBuilder text = new StringBuilder(OPERATIONS.length * 160);
+        ReportWriter out = new ReportWriter(text);
+        try {
+            for (Operation operation : OPERATIONS) {
+                out.text(operation.attributeName);
+                for (Outcome outcome : OUTCOMES) {
+                    out.text(' ').text(outcome.attributeName).text('=').number(getCount(operation, outcome));
+                }
+                LatencyHistogram histogram = latencies[operation.ordinal()];
+                out.text(" count=").number(histogram.getCount());
+                out.text(" mean=").text(micros(Math.round(histogram.getMeanNanos())));
+                out.text(" p50=").text(micros(histogram.getValueAtPercentile(50)));
+                out.text(" p99=").text(micros(histogram.getValueAtPercentile(99)));
+                out.text(" p999=").text(micros(histogram.getValueAtPercentile(99.9)));
+                out.text(" max=").text(micros(histogram.getMaxNanos())).newline();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers this instance with the platform MBean server under the given
+     * name, e.g. "com.library:type=LibraryMetrics,name=main".
+     */
+    public ObjectName register(String objectName) throws JMException {
+        ObjectName name = new ObjectName(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, name);
+        return name;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongSupplier supplier = attributes.get(attribute);
+        if (supplier == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            LongSupplier supplier = attributes.get(name);
+            if (supplier != null) {
+                list.add(new Attribute(name, supplier.getAsLong()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1fus", nanos / 1000.0);
+    }
+}
@@ -0,0 +1,238 @@
+package com.library.service;
+
+import com.library.model.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The loans of a library as they were at one moment, from Library.snapshot().
+ * Every answer about loans comes from the same moment, however long the
+ * reader takes, and reading never holds up borrowers: the snapshot reads the
+ * history through an epoch view, and finds its open loans among the live
+ * ones plus a log of the loans closed since it was taken. Overdue loans come
+ * from the due-date index, so they cost the overdue loans, not the history.
+ *
+ * Item counts and the most active user are read from the library's counters
+ * when the snapshot is taken. Items and users are the live objects; only
+ * which of them are lent to whom is frozen. Records handed out are detached
+ * copies.
+ *
+ * Close the snapshot when done with it; until then, or until it is
+ * collected, every return is logged for it and history chunks with returns
+ * it cannot see stay out of the archive. Safe for concurrent use.
+ */
+public final class LibrarySnapshot implements AutoCloseable {
+    private final Library library;
+    private final BorrowHistory.View history;
+    private final Library.ClosedLoans closed;
+    private final int rowsBefore;
+    private final int itemCount;
+    private final int userCount;
+    private final long books;
+    private final long magazines;
+    private final int mostActiveUser;
+    private volatile Loans loans;
+    private volatile long borrowRecordCount = -1;
+
+    LibrarySnapshot(Library library, BorrowHistory.View history, Library.ClosedLoans closed, int rowsBefore,
+                    int itemCount, int userCount, long books, long magazines, int mostActiveUser) {
+        this.library = library;
+        this.history = history;
+        this.closed = closed;
+        this.rowsBefore = rowsBefore;
+        this.itemCount = itemCount;
+        this.userCount = userCount;
+        this.books = books;
+        this.magazines = magazines;
+        this.mostActiveUser = mostActiveUser;
+    }
+
+    public int getEpoch() {
+        return history.epoch();
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * Rows reserved before the snapshot was taken all belong to it, so only
+     * those reserved while it was being taken are checked one by one.
+     */
+    public long getBorrowRecordCount() {
+        long count = borrowRecordCount;
+        if (count < 0) {
+            long[] rows = {rowsBefore};
+            history.forEach(rowsBefore, history.rowLimit(), (row, user, item, borrowDay, dueDay, returnDay) -> rows[0]++);
+            borrowRecordCount = count = rows[0];
+        }
+        return count;
+    }
+
+    public int getTotalBooks() {
+        return (int) books;
+    }
+
+    public int getTotalMagazines() {
+        return (int) magazines;
+    }
+
+    public int getOpenLoanCount() {
+        return loans().rows.length;
+    }
+
+    /**
+     * The open loans in the order they were made.
+     */
+    public List<BorrowRecord> getOpenLoans() {
+        int[] rows = loans().rows;
+        List<BorrowRecord> records = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            records.add(history.get(row));
+        }
+        return records;
+    }
+
+    public int getLoanCount(User user) {
+        int ordinal = library.ordinalOf(user);
+        if (ordinal < 0 || ordinal >= userCount) {
+            return 0;
+        }
+        int count = 0;
+        for (int holder : loans().users) {
+            count += holder == ordinal ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * The items the user held, in the order they were borrowed.
+     */
+    public List<LibraryItem> getBorrowedItems(User user) {
+        int ordinal = library.ordinalOf(user);
+        if (ordinal < 0 || ordinal >= userCount) {
+            return Collections.emptyList();
+        }
+        Loans loans = loans();
+        List<LibraryItem> borrowed = new ArrayList<>();
+        for (int i = 0; i < loans.rows.length; i++) {
+            if (loans.users[i] == ordinal) {
+                borrowed.add(library.getItem(loans.items[i]));
+            }
+        }
+        return borrowed;
+    }
+
+    /**
+     * The user holding the most items when the snapshot was taken, the
+     * earliest registered on a tie, or null if there are no users.
+     */
+    public User getMostActiveUser() {
+        return mostActiveUser < 0 ? null : library.getUser(mostActiveUser);
+    }
+
+    /**
+     * Open loans due strictly before asOf, earliest due first.
+     */
+    public List<BorrowRecord> getOverdueRecords(LocalDate asOf) {
+        long[][] keys = {new long[16]};
+        int[] overdue = new int[1];
+        library.forEachOpenAt(history, closed, asOf, (row, user, item, borrowDay, dueDay, returnDay) -> {
+            if (overdue[0] == keys[0].length) {
+                keys[0] = Arrays.copyOf(keys[0], overdue[0] * 2);
+            }
+            // due day in the high half, row in the low half
+            keys[0][overdue[0]++] = (long) dueDay << 32 | row;
+        });
+        Arrays.sort(keys[0], 0, overdue[0]);
+        List<BorrowRecord> records = new ArrayList<>(overdue[0]);
+        for (int i = 0; i < overdue[0]; i++) {
+            records.add(history.get((int) keys[0][i]));
+        }
+        return records;
+    }
+
+    /**
+     * Late fees per user for the loans that were overdue as of the given
+     * date, as Library.processOverdueItems computes them.
+     */
+    public Map<User, Double> processOverdueItems(LocalDate asOf) {
+        return aggregateOverdueFees(asOf, ForkJoinPool.commonPool()).toMap();
+    }
+
+    public FeeSummary aggregateOverdueFees(LocalDate asOf, ForkJoinPool pool) {
+        return new FeeSummary(library, history.aggregateLateFees((int) asOf.toEpochDay(), true, pool));
+    }
+
+    public FeeSummary aggregateLateFees(LocalDate asOf, ForkJoinPool pool) {
+        return new FeeSummary(library, history.aggregateLateFees((int) asOf.toEpochDay(), false, pool));
+    }
+
+    /**
+     * Visits every row of the history in the snapshot, as
+     * BorrowHistory.forEach does for the live one.
+     */
+    public void forEach(BorrowHistory.RowVisitor visitor) {
+        history.forEach(visitor);
+    }
+
+    /**
+     * Stops logging returns for this snapshot and unpins its epoch, so the
+     * history it sees may be archived. Its answers stay valid, but open and
+     * overdue loans asked for after closing may miss loans returned since.
+     */
+    @Override
+    public void close() {
+        library.closeSnapshot(closed);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LibrarySnapshot{epoch=%d, items=%d, users=%d}", history.epoch(), itemCount, userCount);
+    }
+
+    private Loans loans() {
+        Loans derived = loans;
+        if (derived == null) {
+            loans = derived = new Loans(library, history, closed);
+        }
+        return derived;
+    }
+
+    /**
+     * The open loans of the snapshot as parallel arrays in row order.
+     */
+    private static final class Loans {
+        final int[] rows;
+        final int[] users;
+        final int[] items;
+
+        Loans(Library library, BorrowHistory.View history, Library.ClosedLoans closed) {
+            int[][] columns = new int[3][16];
+            int[] size = new int[1];
+            library.forEachOpenAt(history, closed, null, (row, user, item, borrowDay, dueDay, returnDay) -> {
+                int n = size[0]++;
+                if (n == columns[0].length) {
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c] = Arrays.copyOf(columns[c], n * 2);
+                    }
+                }
+                columns[0][n] = row;
+                columns[1][n] = user;
+                columns[2][n] = item;
+            });
+            rows = Arrays.copyOf(columns[0], size[0]);
+            users = Arrays.copyOf(columns[1], size[0]);
+            items = Arrays.copyOf(columns[2], size[0]);
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package com.library.service;
 
 import com.library.model.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 /**
  * Provides statistics and analytics for a Library.
+ * Totals are read from counters the Library keeps up to date, so they cost
+ * O(1) (O(log n) for the most active user) instead of a catalog scan.
+ *
+ * Reports can be streamed to any target through a ReportWriter; the
+ * generate* methods render the same text into a String. User reports of
+ * registered users are kept in the library's UserReportCache until the
+ * user changes.
  */
 public class LibraryStatistics {
     private Library library;
@@ -14,57 +23,116 @@ public class LibraryStatistics {
     }
 
     public int getTotalBooks() {
-        return (int) library.getItems().stream()
-                .filter(item -> item instanceof Book)
-                .count();
+        return (int) library.counters().getBooks();
     }
 
     public int getTotalMagazines() {
-        return (int) library.getItems().stream()
-                .filter(item -> item instanceof Magazine)
-                .count();
+        return (int) library.counters().getMagazines();
+    }
+
+    public long getTotalItemsOfType(String itemType) {
+        return library.counters().getItemsOfType(itemType);
+    }
+
+    public int getActiveLoanCount() {
+        return library.getOpenLoanCount();
     }
 
     public User getMostActiveUser() {
-        return library.getUsers().stream()
-                .max(Comparator.comparingInt(User::getBorrowedItemsCount))
-                .orElse(null);
+        int ordinal = library.counters().mostActiveUserOrdinal(library.getUserCount());
+        return ordinal < 0 ? null : library.getUser(ordinal);
     }
 
     public double getAverageBorrowsPerUser() {
-        List<User> users = library.getUsers();
-        if (users.isEmpty()) return 0.0;
-        int totalBorrows = library.getBorrowRecords().size();
-        return (double) totalBorrows / users.size();
+        int userCount = library.getUserCount();
+        if (userCount == 0) return 0.0;
+        long totalBorrows = library.getBorrowRecordCount();
+        return (double) totalBorrows / userCount;
     }
 
     public String generateUserReport(User user) {
         StringBuilder report = new StringBuilder();
-        report.append("=== User Report for ").append(user.getName()).append(" ===\n");
+        render(() -> writeUserReport(new ReportWriter(report), user));
+        return report.toString();
+    }
+
+    /**
+     * Streams the report of generateUserReport to out.
+     */
+    public void writeUserReport(ReportWriter out, User user) throws IOException {
+        LibraryMetrics metrics = library.getMetrics();
+        if (metrics == null) {
+            userReport(out, user);
+            return;
+        }
+        long start = System.nanoTime();
+        LibraryMetrics.Outcome outcome = LibraryMetrics.Outcome.FAILURE;
+        try {
+            userReport(out, user);
+            outcome = LibraryMetrics.Outcome.SUCCESS;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.USER_REPORT, outcome, start);
+        }
+    }
+
+    private void userReport(ReportWriter out, User user) throws IOException {
+        int ordinal = library.ordinalOf(user);
+        if (ordinal < 0) {
+            renderUserReport(out, user);
+            return;
+        }
+        UserReportCache cache = library.getUserReportCache();
+        long version = user.getVersion();
+        String report = cache.get(ordinal, version);
+        if (report == null) {
+            long generation = cache.generation();
+            StringBuilder text = new StringBuilder();
+            renderUserReport(new ReportWriter(text), user);
+            report = text.toString();
+            cache.put(ordinal, version, generation, report);
+        }
+        out.text(report);
+    }
+
+    private void renderUserReport(ReportWriter out, User user) throws IOException {
+        out.text("=== User Report for ").text(user.getName()).text(" ===").newline();
 
         int borrowedCount = user.getBorrowedItemsCount();
-        report.append("Currently borrowed: ").append(borrowedCount).append("/")
-              .append(user.getMaxBorrowLimit()).append("\n");
+        out.text("Currently borrowed: ").number(borrowedCount).text('/')
+           .number(user.getMaxBorrowLimit()).newline();
 
         if (borrowedCount > 0) {
-            report.append("Borrowed items:\n");
+            out.text("Borrowed items:").newline();
             for (LibraryItem item : user.getBorrowedItems()) {
-                report.append("  - ").append(item.getTitle())
-                      .append(" (").append(item.getItemType()).append(")\n");
+                out.text("  - ").text(item.getTitle())
+                   .text(" (").text(item.getItemType()).text(')').newline();
             }
         } else {
-            report.append("No items currently borrowed\n");
+            out.text("No items currently borrowed").newline();
         }
 
         if (user instanceof Student) {
             Student student = (Student) user;
-            report.append("Student ID: ").append(student.getStudentId()).append("\n");
+            out.text("Student ID: ").text(student.getStudentId()).newline();
         } else if (user instanceof Professor) {
             Professor prof = (Professor) user;
-            report.append("Department: ").append(prof.getDepartment()).append("\n");
+            out.text("Department: ").text(prof.getDepartment()).newline();
         }
+    }
 
-        return report.toString();
+    /**
+     * Writes the user report of every registered user, separated by blank
+     * lines, in one pass over the user registry.
+     */
+    public void writeAllUserReports(ReportWriter out) throws IOException {
+        boolean first = true;
+        for (User user : library.getUsers()) {
+            if (!first) {
+                out.newline();
+            }
+            writeUserReport(out, user);
+            first = false;
+        }
     }
 
     @Override
@@ -74,53 +142,108 @@ public class LibraryStatistics {
     }
 
     public String generateDetailedLibraryReport() {
+        return generateDetailedLibraryReport(library.today());
+    }
+
+    /**
+     * The detailed report with overdue items and fees evaluated as of the
+     * given date.
+     */
+    public String generateDetailedLibraryReport(java.time.LocalDate asOf) {
         StringBuilder report = new StringBuilder();
-        report.append("=== DETAILED LIBRARY REPORT ===\n\n");
+        render(() -> writeDetailedLibraryReport(new ReportWriter(report), asOf));
+        return report.toString();
+    }
+
+    /**
+     * Streams the report of generateDetailedLibraryReport(asOf) to out.
+     */
+    public void writeDetailedLibraryReport(ReportWriter out, java.time.LocalDate asOf) throws IOException {
+        LibraryMetrics metrics = library.getMetrics();
+        if (metrics == null) {
+            detailedLibraryReport(out, asOf);
+            return;
+        }
+        long start = System.nanoTime();
+        LibraryMetrics.Outcome outcome = LibraryMetrics.Outcome.FAILURE;
+        try {
+            detailedLibraryReport(out, asOf);
+            outcome = LibraryMetrics.Outcome.SUCCESS;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.LIBRARY_REPORT, outcome, start);
+        }
+    }
 
-        report.append("Library: ").append(library.getName()).append("\n\n");
+    /**
+     * Reads the totals and overdue loans from one snapshot, so they agree
+     * with each other while loans keep changing. The most active user's own
+     * report is the cached one, as of when it is written.
+     */
+    private void detailedLibraryReport(ReportWriter out, java.time.LocalDate asOf) throws IOException {
+        try (LibrarySnapshot snapshot = library.snapshot()) {
+            detailedLibraryReport(out, asOf, snapshot);
+        }
+    }
+
+    private void detailedLibraryReport(ReportWriter out, java.time.LocalDate asOf, LibrarySnapshot snapshot)
+            throws IOException {
+        out.text("=== DETAILED LIBRARY REPORT ===").newline().newline();
 
-        report.append("Total Items: ").append(library.getItems().size()).append("\n");
-        report.append("Total Books: ").append(getTotalBooks()).append("\n");
-        report.append("Total Magazines: ").append(getTotalMagazines()).append("\n\n");
+        out.text("Library: ").text(library.getName()).newline().newline();
 
-        User mostActive = getMostActiveUser();
+        out.text("Total Items: ").number(snapshot.getItemCount()).newline();
+        out.text("Total Books: ").number(snapshot.getTotalBooks()).newline();
+        out.text("Total Magazines: ").number(snapshot.getTotalMagazines()).newline().newline();
+
+        User mostActive = snapshot.getMostActiveUser();
         if (mostActive != null) {
-            report.append("Most Active User: ").append(mostActive.getName()).append("\n");
-            report.append(generateUserReport(mostActive)).append("\n");
+            out.text("Most Active User: ").text(mostActive.getName()).newline();
+            userReport(out, mostActive);
+            out.newline();
         }
 
-        List<BorrowRecord> overdueRecords = library.getOverdueRecords();
-        report.append("Overdue Items: ").append(overdueRecords.size()).append("\n");
+        List<BorrowRecord> overdueRecords = snapshot.getOverdueRecords(asOf);
+        out.text("Overdue Items: ").number(overdueRecords.size()).newline();
 
         if (!overdueRecords.isEmpty()) {
             BorrowRecord firstOverdue = overdueRecords.get(0);
-            report.append("\nFirst Overdue Item Details:\n");
-            report.append("  User: ").append(firstOverdue.getUser().getName()).append("\n");
-            report.append("  Item: ").append(firstOverdue.getItem().getTitle()).append("\n");
-            report.append("  Type: ").append(firstOverdue.getItem().getItemType()).append("\n");
+            out.newline().text("First Overdue Item Details:").newline();
+            out.text("  User: ").text(firstOverdue.getUser().getName()).newline();
+            out.text("  Item: ").text(firstOverdue.getItem().getTitle()).newline();
+            out.text("  Type: ").text(firstOverdue.getItem().getItemType()).newline();
 
             LibraryItem item = firstOverdue.getItem();
             if (item instanceof Book) {
                 Book book = (Book) item;
-                report.append("  Author: ").append(book.getAuthor()).append("\n");
-                report.append("  ISBN: ").append(book.getIsbn()).append("\n");
+                out.text("  Author: ").text(book.getAuthor()).newline();
+                out.text("  ISBN: ").text(book.getIsbn()).newline();
             } else if (item instanceof Magazine) {
                 Magazine magazine = (Magazine) item;
-                report.append("  Publisher: ").append(magazine.getPublisher()).append("\n");
-                report.append("  Issue: ").append(magazine.getIssueNumber()).append("\n");
+                out.text("  Publisher: ").text(magazine.getPublisher()).newline();
+                out.text("  Issue: ").number(magazine.getIssueNumber()).newline();
             }
 
-            report.append("  Due Date: ").append(firstOverdue.getDueDate()).append("\n");
-            report.append("  Days Overdue: ").append(
-                DateUtils.daysBetween(firstOverdue.getDueDate(), java.time.LocalDate.now())
-            ).append("\n");
-            report.append("  Late Fee: €").append(
-                String.format("%.2f", firstOverdue.calculateLateFee())
-            ).append("\n");
-            report.append("  Notification: ").append(firstOverdue.sendOverdueNotification()).append("\n");
+            out.text("  Due Date: ").date(firstOverdue.getDueDate()).newline();
+            out.text("  Days Overdue: ").number(DateUtils.daysBetween(firstOverdue.getDueDate(), asOf)).newline();
+            out.text("  Late Fee: €").money(firstOverdue.calculateLateFee(asOf)).newline();
+            out.text("  Notification: ").text(firstOverdue.sendOverdueNotification(asOf)).newline();
         }
+    }
 
-        return report.toString();
+    /**
+     * Runs a report writer against an in-memory target, which cannot fail.
+     */
+    private static void render(ReportAction action) {
+        try {
+            action.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ReportAction {
+        void run() throws IOException;
     }
 
     public String chainStep2(User user, LibraryItem item) {
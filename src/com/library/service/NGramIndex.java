@@ -0,0 +1,164 @@
+package com.library.service;
+
+import com.library.model.LibraryItem;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Inverted trigram index over one text attribute of the catalog.
+ * Each distinct lower-cased trigram maps to the sorted ordinals of the items
+ * whose text contains it. A substring query intersects the posting lists of
+ * the query's trigrams, starting with the shortest, and the few remaining
+ * candidates are verified against the real text. Trigrams are packed into
+ * longs and never boxed: a text's trigrams are a sorted long[] and the
+ * postings are keyed by the primitive value.
+ *
+ * Updates take a write lock and queries a read lock, so searches run in
+ * parallel with each other and only wait for catalog changes.
+ */
+final class NGramIndex {
+    static final int GRAM_LENGTH = 3;
+    private static final long[] NO_GRAMS = new long[0];
+
+    private final Function<LibraryItem, String> extractor;
+    private final LongObjectMap<SortedIntSet> postings;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    NGramIndex(Function<LibraryItem, String> extractor) {
+        this.extractor = extractor;
+        this.postings = new LongObjectMap<>();
+    }
+
+    void add(int ordinal, LibraryItem item) {
+        long[] itemGrams = grams(extractor.apply(item));
+        lock.writeLock().lock();
+        try {
+            for (long gram : itemGrams) {
+                postings.computeIfAbsent(gram, SortedIntSet::new).add(ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes a batch of consecutive ordinals starting at firstOrdinal under
+     * a single write lock.
+     */
+    void addAll(int firstOrdinal, List<? extends LibraryItem> batch) {
+        List<long[]> batchGrams = new ArrayList<>(batch.size());
+        for (LibraryItem item : batch) {
+            batchGrams.add(grams(extractor.apply(item)));
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batchGrams.size(); i++) {
+                for (long gram : batchGrams.get(i)) {
+                    postings.computeIfAbsent(gram, SortedIntSet::new).add(firstOrdinal + i);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void update(int ordinal, String oldText, String newText) {
+        long[] oldGrams = grams(oldText);
+        long[] newGrams = grams(newText);
+        lock.writeLock().lock();
+        try {
+            for (long gram : oldGrams) {
+                if (Arrays.binarySearch(newGrams, gram) < 0) {
+                    SortedIntSet list = postings.get(gram);
+                    if (list != null && list.remove(ordinal) && list.isEmpty()) {
+                        postings.remove(gram);
+                    }
+                }
+            }
+            for (long gram : newGrams) {
+                if (Arrays.binarySearch(oldGrams, gram) < 0) {
+                    postings.computeIfAbsent(gram, SortedIntSet::new).add(ordinal);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the sorted ordinals that may contain the term, or null when the
+     * term is shorter than a trigram and the index cannot narrow the search.
+     */
+    int[] candidates(String term) {
+        long[] termGrams = grams(term);
+        if (termGrams.length == 0) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            SortedIntSet[] lists = new SortedIntSet[termGrams.length];
+            int n = 0;
+            for (long gram : termGrams) {
+                SortedIntSet list = postings.get(gram);
+                if (list == null) {
+                    return new int[0];
+                }
+                lists[n++] = list;
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+            int[] result = lists[0].toArray();
+            int count = result.length;
+            for (int i = 1; i < lists.length && count > 0; i++) {
+                count = lists[i].retainIn(result, count);
+            }
+            return Arrays.copyOf(result, count);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean matches(LibraryItem item, String term) {
+        return containsIgnoreCase(extractor.apply(item), term);
+    }
+
+    static boolean containsIgnoreCase(String text, String term) {
+        if (text == null) {
+            return false;
+        }
+        int last = text.length() - term.length();
+        for (int i = 0; i <= last; i++) {
+            if (text.regionMatches(true, i, term, 0, term.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The distinct trigrams of the text, sorted.
+     */
+    private static long[] grams(String text) {
+        if (text == null || text.length() < GRAM_LENGTH) {
+            return NO_GRAMS;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        long[] grams = new long[lower.length() - GRAM_LENGTH + 1];
+        for (int i = 0; i < grams.length; i++) {
+            // 21 bits per char, enough for any UTF-16 unit
+            grams[i] = ((long) lower.charAt(i + 2) << 42) | ((long) lower.charAt(i + 1) << 21) | lower.charAt(i);
+        }
+        Arrays.sort(grams);
+        int distinct = grams.length == 0 ? 0 : 1;
+        for (int i = 1; i < grams.length; i++) {
+            if (grams[i] != grams[distinct - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return distinct == grams.length ? grams : Arrays.copyOf(grams, distinct);
+    }
+}
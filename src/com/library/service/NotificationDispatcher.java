@@ -0,0 +1,240 @@
+package com.library.service;
+
+import com.library.model.BorrowRecord;
+import com.library.model.User;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends overdue reminders in the background. dispatchOverdue collects the
+ * loans overdue as of a date from the due-date index, folds each user's
+ * loans into one OverdueDigest and hands the digests to a NotificationSink
+ * in batches, each batch on its own sender thread.
+ *
+ * Collecting reads only the overdue prefix of the index and takes no loan
+ * locks, so borrowing and returning go on unhindered. The sink is protected
+ * three ways: at most maxInFlightBatches batches are outstanding, and
+ * dispatchOverdue waits for a free slot before queueing more (backpressure);
+ * batches are started no faster than batchesPerSecond; and a batch whose
+ * send fails is retried with exponential backoff up to maxAttempts times
+ * before its digests are counted as failed.
+ *
+ * Senders run on virtual threads when the runtime has them (Java 21 and
+ * later) and on a small pool of daemon threads otherwise.
+ */
+public final class NotificationDispatcher implements AutoCloseable {
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 16;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long RETRY_BACKOFF_MILLIS = 50;
+    private static final int MAX_PLATFORM_SENDERS = 16;
+
+    private final Library library;
+    private final NotificationSink sink;
+    private final int batchSize;
+    private final int maxInFlightBatches;
+    private final long nanosPerBatch;
+    private final int maxAttempts;
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final AtomicLong nextSendNanos = new AtomicLong(System.nanoTime());
+    private final LongAdder sentDigests = new LongAdder();
+    private final LongAdder failedDigests = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private volatile Exception lastFailure;
+
+    public NotificationDispatcher(Library library, NotificationSink sink) {
+        this(library, sink, DEFAULT_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT_BATCHES, 0, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param batchesPerSecond upper bound on the rate at which batches are
+     *                         started, or 0 for no limit
+     */
+    public NotificationDispatcher(Library library, NotificationSink sink, int batchSize, int maxInFlightBatches,
+                                  double batchesPerSecond, int maxAttempts) {
+        if (library == null) throw new IllegalArgumentException("library must not be null");
+        if (sink == null) throw new IllegalArgumentException("sink must not be null");
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        if (maxInFlightBatches < 1) throw new IllegalArgumentException("maxInFlightBatches must be positive: " + maxInFlightBatches);
+        if (!(batchesPerSecond >= 0)) throw new IllegalArgumentException("batchesPerSecond must not be negative: " + batchesPerSecond);
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        this.library = library;
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.nanosPerBatch = batchesPerSecond == 0 ? 0 : (long) Math.ceil(TimeUnit.SECONDS.toNanos(1) / batchesPerSecond);
+        this.maxAttempts = maxAttempts;
+        this.inFlight = new Semaphore(maxInFlightBatches);
+        this.senders = newSenderExecutor(maxInFlightBatches);
+    }
+
+    /**
+     * Queues one digest per user with loans overdue as of the given date and
+     * returns the number of digests queued. Returns once the last batch is
+     * queued, not when it is sent; use awaitIdle to wait for delivery.
+     * @throws IllegalStateException if the dispatcher has been closed
+     */
+    public int dispatchOverdue(LocalDate asOf) throws InterruptedException {
+        List<OverdueDigest> digests = collectDigests(asOf);
+        for (int from = 0; from < digests.size(); from += batchSize) {
+            List<OverdueDigest> batch = digests.subList(from, Math.min(digests.size(), from + batchSize));
+            inFlight.acquire();
+            try {
+                senders.execute(() -> deliver(batch));
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                throw new IllegalStateException("Dispatcher is closed", e);
+            }
+        }
+        return digests.size();
+    }
+
+    /**
+     * The digests dispatchOverdue would send, in order of each user's
+     * earliest due date.
+     */
+    public List<OverdueDigest> collectDigests(LocalDate asOf) {
+        Map<User, List<BorrowRecord>> byUser = new LinkedHashMap<>();
+        for (BorrowRecord record : library.getOverdueRecords(asOf)) {
+            byUser.computeIfAbsent(record.getUser(), u -> new ArrayList<>(2)).add(record);
+        }
+        List<OverdueDigest> digests = new ArrayList<>(byUser.size());
+        for (Map.Entry<User, List<BorrowRecord>> entry : byUser.entrySet()) {
+            digests.add(new OverdueDigest(entry.getKey(), asOf, entry.getValue()));
+        }
+        return digests;
+    }
+
+    /**
+     * Waits until every batch queued so far has been sent or has failed.
+     */
+    public void awaitIdle() throws InterruptedException {
+        inFlight.acquire(maxInFlightBatches);
+        inFlight.release(maxInFlightBatches);
+    }
+
+    public long getSentDigestCount() {
+        return sentDigests.sum();
+    }
+
+    public long getFailedDigestCount() {
+        return failedDigests.sum();
+    }
+
+    public long getSentBatchCount() {
+        return sentBatches.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * The exception of the last batch that failed for good, or null.
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Stops accepting work and waits for the queued batches to finish.
+     */
+    @Override
+    public void close() {
+        senders.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (senders.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliver(List<OverdueDigest> batch) {
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    awaitSendSlot();
+                    sink.send(batch);
+                    sentDigests.add(batch.size());
+                    sentBatches.increment();
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(batch, e);
+                    return;
+                } catch (Exception e) {
+                    if (attempt >= maxAttempts) {
+                        fail(batch, e);
+                        return;
+                    }
+                    retries.increment();
+                    try {
+                        Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        fail(batch, e);
+                        return;
+                    }
+                }
+            }
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private void fail(List<OverdueDigest> batch, Exception cause) {
+        failedDigests.add(batch.size());
+        lastFailure = cause;
+    }
+
+    /**
+     * Spaces sends nanosPerBatch apart: each send claims the next free slot
+     * and sleeps until it comes.
+     */
+    private void awaitSendSlot() throws InterruptedException {
+        if (nanosPerBatch == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long slot = nextSendNanos.getAndAccumulate(now, (next, t) -> Math.max(next, t) + nanosPerBatch);
+        long wait = slot - now;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private static ExecutorService newSenderExecutor(int maxInFlightBatches) {
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21 on
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(Math.min(maxInFlightBatches, MAX_PLATFORM_SENDERS), task -> {
+                Thread thread = new Thread(task, "overdue-notifier-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.library.service;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of overdue notifications, e.g. a mail gateway. The dispatcher
+ * calls send from several threads at once; a failed batch is retried as a
+ * whole, so a sink should tolerate seeing a digest more than once.
+ */
+@FunctionalInterface
+public interface NotificationSink {
+    void send(List<OverdueDigest> batch) throws IOException;
+}
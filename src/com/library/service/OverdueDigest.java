@@ -0,0 +1,74 @@
+package com.library.service;
+
+import com.library.model.BorrowRecord;
+import com.library.model.User;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One notification for one user: all of the user's loans that are overdue
+ * as of a date, with the fee accrued on them.
+ */
+public final class OverdueDigest {
+    private final User user;
+    private final LocalDate asOf;
+    private final List<BorrowRecord> records;
+    private final long feeCents;
+
+    OverdueDigest(User user, LocalDate asOf, List<BorrowRecord> records) {
+        this.user = user;
+        this.asOf = asOf;
+        this.records = Collections.unmodifiableList(records);
+        long cents = 0;
+        for (BorrowRecord record : records) {
+            cents += DateUtils.daysOverdue((int) record.getDueDate().toEpochDay(), (int) asOf.toEpochDay())
+                    * BorrowHistory.LATE_FEE_CENTS_PER_DAY;
+        }
+        this.feeCents = cents;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public LocalDate getAsOf() {
+        return asOf;
+    }
+
+    public List<BorrowRecord> getRecords() {
+        return records;
+    }
+
+    public long getFeeCents() {
+        return feeCents;
+    }
+
+    /**
+     * The text sent to the user: a header, one line per overdue loan as
+     * BorrowRecord.sendOverdueNotification words it, and the total fee.
+     */
+    public String getMessage() {
+        StringBuilder message = new StringBuilder(128 + records.size() * 96);
+        ReportWriter out = new ReportWriter(message);
+        try {
+            out.text("To: ").text(user.getName()).text(" <").text(user.getEmail()).text(">").newline();
+            out.text("Overdue items as of ").date(asOf).text(": ").number(records.size()).newline();
+            for (BorrowRecord record : records) {
+                out.text(" - ").text(record.sendOverdueNotification(asOf)).newline();
+            }
+            out.text("Total late fee: €").cents(feeCents).newline();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return message.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("OverdueDigest{user=%s, asOf=%s, items=%d, feeCents=%d}",
+                user.getUserId(), asOf, records.size(), feeCents);
+    }
+}
@@ -0,0 +1,10 @@
+package com.library.service;
+
+/**
+ * Source of numeric borrow record ids. Implementations must be safe for
+ * concurrent use and never return the same id twice or a negative id.
+ */
+@FunctionalInterface
+public interface RecordIdGenerator {
+    long nextId();
+}
@@ -0,0 +1,243 @@
+package com.library.service;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Hash-indexed registry used by Library for its items and users.
+ * Elements keep the order in which they were added and receive a dense
+ * ordinal (their position) that other indexes can use as a compact key.
+ *
+ * Writers are serialized on the registry; lookups never lock. The element
+ * array is republished through a volatile field whenever it grows, and an id
+ * is only put in the map once its element is in place.
+ *
+ * The first elements may instead come from a Source, which builds each one
+ * when it is first asked for and resolves their original ids. The map then
+ * only holds ids that differ from the source: added or renamed elements, and
+ * TOMBSTONE for a source id that was renamed away.
+ */
+final class Registry<T> {
+    private static final VarHandle ELEMENTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final int TOMBSTONE = -1;
+
+    /**
+     * Elements [0, count) of a registry that are built on first access.
+     */
+    interface Source<T> {
+        /**
+         * Builds the element; called at most once per ordinal, under the
+         * registry lock.
+         */
+        T load(int ordinal);
+
+        /**
+         * Ordinal of the element with the given original id, or -1.
+         */
+        int ordinalOf(String id);
+    }
+
+    private final String kind;
+    private final Map<String, Integer> ordinalsById;
+    private volatile Object[] elements;
+    private volatile int size;
+    private volatile Source<? extends T> source;
+
+    Registry(String kind) {
+        this.kind = kind;
+        this.ordinalsById = new ConcurrentHashMap<>();
+        this.elements = new Object[16];
+    }
+
+    synchronized int add(String id, T element) {
+        requireAvailable(id);
+        int ordinal = size;
+        Object[] current = elements;
+        if (ordinal == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[ordinal] = element;
+        elements = current;
+        size = ordinal + 1;
+        ordinalsById.put(id, ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Adds a batch under one lock and returns the ordinal of its first
+     * element; the rest follow in order. Fails without adding anything if any
+     * id is null, already registered or repeated within the batch.
+     */
+    synchronized int addAll(List<? extends T> batch, Function<? super T, String> idOf) {
+        Set<String> batchIds = new HashSet<>();
+        for (T element : batch) {
+            String id = idOf.apply(element);
+            requireAvailable(id);
+            if (!batchIds.add(id)) {
+                throw new IllegalArgumentException("Duplicate " + kind + " id: " + id);
+            }
+        }
+        int first = size;
+        Object[] current = elements;
+        if (first + batch.size() > current.length) {
+            current = Arrays.copyOf(current, Math.max(first + batch.size(), current.length * 2));
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            current[first + i] = batch.get(i);
+        }
+        elements = current;
+        size = first + batch.size();
+        for (int i = 0; i < batch.size(); i++) {
+            ordinalsById.put(idOf.apply(batch.get(i)), first + i);
+        }
+        return first;
+    }
+
+    /**
+     * Registers count elements served by the source as ordinals [0, count).
+     * Only allowed while the registry is empty.
+     */
+    synchronized void addFromSource(int count, Source<? extends T> source) {
+        if (size != 0) {
+            throw new IllegalStateException("The " + kind + " registry is not empty");
+        }
+        elements = new Object[Math.max(16, count)];
+        this.source = source;
+        size = count;
+    }
+
+    T get(String id) {
+        int ordinal = ordinalOf(id);
+        return ordinal < 0 ? null : get(ordinal);
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int ordinal) {
+        Object element = ELEMENTS.getAcquire(elements, ordinal);
+        return element != null || source == null ? (T) element : load(ordinal);
+    }
+
+    /**
+     * The element if it is in place, without building it from the source.
+     */
+    @SuppressWarnings("unchecked")
+    T getIfLoaded(int ordinal) {
+        return (T) ELEMENTS.getAcquire(elements, ordinal);
+    }
+
+    int ordinalOf(String id) {
+        if (id == null) {
+            return -1;
+        }
+        Integer ordinal = ordinalsById.get(id);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        Source<? extends T> current = source;
+        return current == null ? -1 : current.ordinalOf(id);
+    }
+
+    boolean containsId(String id) {
+        return ordinalOf(id) >= 0;
+    }
+
+    /**
+     * Moves an element to a new key. Fails without changing anything when the
+     * new id is null or already taken by another element.
+     */
+    synchronized void rename(String oldId, String newId) {
+        requireId(newId);
+        int ordinal = ordinalOf(oldId);
+        if (ordinal < 0) {
+            throw new IllegalStateException("Unknown " + kind + " id: " + oldId);
+        }
+        if (containsId(newId)) {
+            throw new IllegalArgumentException("Duplicate " + kind + " id: " + newId);
+        }
+        ordinalsById.put(newId, ordinal);
+        Source<? extends T> current = source;
+        if (current != null && current.ordinalOf(oldId) >= 0) {
+            ordinalsById.put(oldId, TOMBSTONE);
+        } else {
+            ordinalsById.remove(oldId);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Read-only view of the elements registered when the method was called.
+     */
+    List<T> asList() {
+        int count = size;
+        Object[] snapshot = elements;
+        return new AbstractList<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T get(int index) {
+                if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+                Object element = ELEMENTS.getAcquire(snapshot, index);
+                return element != null ? (T) element : Registry.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Like asList, but with null for elements the source has not built yet.
+     */
+    List<T> asLoadedList() {
+        int count = size;
+        return new AbstractList<T>() {
+            @Override
+            public T get(int index) {
+                if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+                return getIfLoaded(index);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Throws the same exception add(id, element) would for an id that cannot be added.
+     */
+    void requireAvailable(String id) {
+        requireId(id);
+        if (containsId(id)) {
+            throw new IllegalArgumentException("Duplicate " + kind + " id: " + id);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized T load(int ordinal) {
+        Object[] current = elements;
+        Object element = current[ordinal];
+        if (element == null && ordinal < size) {
+            element = source.load(ordinal);
+            ELEMENTS.setRelease(current, ordinal, element);
+        }
+        return (T) element;
+    }
+
+    private void requireId(String id) {
+        if (id == null) throw new IllegalArgumentException(kind + " id must not be null");
+    }
+}
@@ -0,0 +1,120 @@
+package com.library.service;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Streams report text to an Appendable (a StringBuilder, a Writer, or a
+ * channel through toChannel). Numbers, amounts and dates are written digit by
+ * digit into the target instead of going through String.format or
+ * intermediate Strings, so rendering a report allocates next to nothing
+ * beyond what the target itself buffers.
+ *
+ * Amounts are always written with a '.' decimal separator and two decimals.
+ */
+public final class ReportWriter implements Flushable {
+    private final Appendable out;
+    private final char[] digits = new char[20];
+
+    public ReportWriter(Appendable out) {
+        if (out == null) throw new IllegalArgumentException("out must not be null");
+        this.out = out;
+    }
+
+    /**
+     * A writer that encodes UTF-8 onto the channel. Call flush() when done.
+     */
+    public static ReportWriter toChannel(WritableByteChannel channel) {
+        return new ReportWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+    }
+
+    public ReportWriter text(CharSequence text) throws IOException {
+        out.append(text == null ? "null" : text);
+        return this;
+    }
+
+    public ReportWriter text(char c) throws IOException {
+        out.append(c);
+        return this;
+    }
+
+    public ReportWriter newline() throws IOException {
+        out.append('\n');
+        return this;
+    }
+
+    public ReportWriter number(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            out.append("-9223372036854775808");
+            return this;
+        }
+        if (value < 0) {
+            out.append('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = pos; i < digits.length; i++) {
+            out.append(digits[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Writes an amount rounded to the nearest cent. This matches
+     * String.format("%.2f", amount) in an English locale except for doubles
+     * that lie just below a half cent, such as 1.005.
+     */
+    public ReportWriter money(double amount) throws IOException {
+        return cents(Math.round(amount * 100));
+    }
+
+    public ReportWriter cents(long cents) throws IOException {
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        number(cents / 100);
+        long fraction = cents % 100;
+        out.append('.').append((char) ('0' + fraction / 10)).append((char) ('0' + fraction % 10));
+        return this;
+    }
+
+    /**
+     * Writes a date as LocalDate.toString() would.
+     */
+    public ReportWriter date(LocalDate date) throws IOException {
+        if (date == null || date.getYear() < 0 || date.getYear() > 9999) {
+            return text(String.valueOf(date));
+        }
+        pad(date.getYear(), 1000);
+        out.append('-');
+        pad(date.getMonthValue(), 10);
+        out.append('-');
+        pad(date.getDayOfMonth(), 10);
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    /**
+     * Writes value zero-padded to the number of digits of highestDivisor * 10.
+     */
+    private void pad(int value, int highestDivisor) throws IOException {
+        for (int divisor = highestDivisor; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.library.service;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snowflake-style record ids: 41 bits of milliseconds since EPOCH_MILLIS,
+ * 10 bits of node number and a 12-bit sequence within the millisecond.
+ * Ids from one generator increase strictly, and generators with different
+ * node numbers never collide.
+ *
+ * The last timestamp and sequence are kept in one AtomicLong and advanced
+ * with a single atomic update, so nextId never blocks. When more than 4096
+ * ids are asked for within a millisecond, or the clock steps back, the
+ * generator keeps counting from the last id it issued and runs slightly
+ * ahead of the clock until the clock catches up.
+ */
+public final class SnowflakeIdGenerator implements RecordIdGenerator {
+    /** 2020-01-01T00:00:00Z, the zero point of the timestamp bits. */
+    public static final long EPOCH_MILLIS = 1577836800000L;
+    public static final int MAX_NODE = (1 << 10) - 1;
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int NODE_SHIFT = SEQUENCE_BITS;
+    private static final int TIMESTAMP_SHIFT = SEQUENCE_BITS + 10;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_TIMESTAMP = (1L << 41) - 1;
+
+    private final long node;
+    private final Clock clock;
+    // (milliseconds since EPOCH_MILLIS << SEQUENCE_BITS) | sequence of the last id
+    private final AtomicLong last = new AtomicLong();
+
+    public SnowflakeIdGenerator(int node) {
+        this(node, Clock.systemUTC());
+    }
+
+    public SnowflakeIdGenerator(int node, Clock clock) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("node must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        if (clock == null) throw new IllegalArgumentException("clock must not be null");
+        this.node = node;
+        this.clock = clock;
+    }
+
+    @Override
+    public long nextId() {
+        long now = clock.millis() - EPOCH_MILLIS;
+        if (now < 0) {
+            throw new IllegalStateException("Clock is before the id epoch: " + clock.instant());
+        }
+        long state = last.accumulateAndGet(now << SEQUENCE_BITS,
+                (previous, candidate) -> candidate > previous ? candidate : previous + 1);
+        long timestamp = state >>> SEQUENCE_BITS;
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("Record id timestamp bits exhausted");
+        }
+        return timestamp << TIMESTAMP_SHIFT | node << NODE_SHIFT | (state & SEQUENCE_MASK);
+    }
+
+    public int getNode() {
+        return (int) node;
+    }
+
+    /**
+     * The wall-clock millisecond encoded in an id made by this class.
+     */
+    public static long timestampMillis(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH_MILLIS;
+    }
+
+    public static int node(long id) {
+        return (int) (id >>> NODE_SHIFT) & MAX_NODE;
+    }
+
+    public static int sequence(long id) {
+        return (int) (id & SEQUENCE_MASK);
+    }
+}
@@ -0,0 +1,59 @@
+package com.library.service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps strings to dense int codes and back, so that columns can store an int
+ * instead of a reference. Equal strings share one code; null encodes as -1.
+ *
+ * Looking up a known string takes no lock. Assigning a new code stores the
+ * string in the reverse table under a short dictionary lock; the table is
+ * published through a volatile field and doubled when full.
+ */
+final class StringDictionary {
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCode = new AtomicInteger();
+    private volatile String[] values = new String[64];
+
+    int encode(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer code = codes.get(value);
+        return code != null ? code : codes.computeIfAbsent(value, this::assign);
+    }
+
+    String get(int code) {
+        if (code < 0) {
+            return null;
+        }
+        String[] current = values;
+        String value = code < current.length ? current[code] : null;
+        if (value == null) {
+            // the code was assigned after we read the table; take the lock
+            // to see the array it was stored in
+            synchronized (this) {
+                value = values[code];
+            }
+        }
+        return value;
+    }
+
+    int size() {
+        return nextCode.get();
+    }
+
+    private int assign(String value) {
+        int code = nextCode.getAndIncrement();
+        synchronized (this) {
+            if (code >= values.length) {
+                values = Arrays.copyOf(values, Math.max(code + 1, values.length * 2));
+            }
+            values[code] = value;
+        }
+        return code;
+    }
+}
@@ -0,0 +1,192 @@
+package com.library.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rendered user reports, kept so that asking again for an unchanged user
+ * costs a map lookup. Owned by a Library and used by LibraryStatistics.
+ *
+ * Each entry is stamped with the user's version and with the cache's
+ * catalog generation, which the library advances when an item title
+ * changes; an entry whose stamps no longer match is a miss and is replaced.
+ * The version is read before rendering, so a report that raced with a
+ * change carries the old version and is never served for the new one.
+ *
+ * The cache is bounded by weight, the number of characters held. Users are
+ * spread over SEGMENTS access-ordered maps, each with its own lock and an
+ * equal share of the weight, and a segment evicts its least recently used
+ * entries when it goes over.
+ */
+public final class UserReportCache {
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 8L << 20;
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile long maximumWeight;
+
+    UserReportCache(long maximumWeight) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+        setMaximumWeight(maximumWeight);
+    }
+
+    /**
+     * Changes the bound, in characters; 0 disables caching. Segments over
+     * their new share shrink on their next insert.
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        if (maximumWeight < 0) throw new IllegalArgumentException("maximumWeight must not be negative: " + maximumWeight);
+        this.maximumWeight = maximumWeight;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Hits divided by lookups, or 0 before the first lookup.
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Characters held across all entries.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    /**
+     * Makes every entry stale, as when an item that may be on someone's
+     * report is renamed.
+     */
+    void catalogChanged() {
+        generation.incrementAndGet();
+    }
+
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * The cached report of the user with this ordinal if it was rendered at
+     * the given version and the current generation, else null.
+     */
+    String get(int userOrdinal, long version) {
+        long generation = this.generation.get();
+        Segment segment = segment(userOrdinal);
+        String report = null;
+        synchronized (segment) {
+            Entry entry = segment.entries.get(userOrdinal);
+            if (entry != null && entry.version == version && entry.generation == generation) {
+                report = entry.report;
+            }
+        }
+        (report != null ? hits : misses).increment();
+        return report;
+    }
+
+    /**
+     * Stores a report rendered after version and generation were read.
+     */
+    void put(int userOrdinal, long version, long generation, String report) {
+        long limit = maximumWeight / SEGMENTS;
+        if (report.length() > limit) {
+            return;
+        }
+        Segment segment = segment(userOrdinal);
+        synchronized (segment) {
+            Entry previous = segment.entries.get(userOrdinal);
+            if (previous != null) {
+                if (previous.version > version || previous.generation > generation) {
+                    return;
+                }
+                segment.weight -= previous.report.length();
+            }
+            segment.entries.put(userOrdinal, new Entry(version, generation, report));
+            segment.weight += report.length();
+            Iterator<Entry> eldest = segment.entries.values().iterator();
+            while (segment.weight > limit && eldest.hasNext()) {
+                segment.weight -= eldest.next().report.length();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private Segment segment(int userOrdinal) {
+        return segments[(userOrdinal * 0x9E3779B9) >>> 28];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UserReportCache{size=%d, weight=%d, hits=%d, misses=%d, evictions=%d}",
+                size(), getWeight(), getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private static final class Segment {
+        final Map<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long weight;
+    }
+
+    private static final class Entry {
+        final long version;
+        final long generation;
+        final String report;
+
+        Entry(long version, long generation, String report) {
+            this.version = version;
+            this.generation = generation;
+            this.report = report;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.library.bench;
+
+import com.library.model.*;
+import com.library.service.Library;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress and linearizability harness for borrowing and returning.
+ *
+ * For each thread count, a fresh library with a small, heavily contended
+ * catalog is hammered for a fixed time with a random mix of borrowItem,
+ * returnItem, borrowMultipleItems and BorrowRecord.markAsReturned. Workers
+ * insert random yields and spins between calls so that runs explore
+ * different interleavings; --seed fixes the operation choices, not the
+ * schedule.
+ *
+ * While the workers run, a monitor thread checks that no user ever holds
+ * more than getMaxBorrowLimit() items. Afterwards the harness checks:
+ * <ul>
+ *   <li>every item is held by at most one user, and is available exactly
+ *       when nobody holds it;</li>
+ *   <li>every user's loan count matches the items held and is within the
+ *       limit;</li>
+ *   <li>every held item has exactly one open BorrowRecord, of its holder,
+ *       and there are no other open records;</li>
+ *   <li>the history has one record per successful borrow;</li>
+ *   <li>each item's history of successful calls is linearizable.</li>
+ * </ul>
+ *
+ * Each worker logs the start and end time of every call that succeeded
+ * (markAsReturned does not report success, so it is logged as a return that
+ * may or may not have taken effect). Linearizability is local, so the logs
+ * are checked per item: the checker searches for an order that respects
+ * real time in which borrows and returns of the item alternate and every
+ * return is by the holder. The search backtracks; if it exceeds --budget
+ * steps for an item the result is reported as inconclusive, not as a
+ * failure.
+ *
+ * One tab-separated line per thread count and round reports throughput and
+ * the outcome; the process exits with status 1 if any check failed,
+ * including a history with no linearization, so that the build's stress
+ * task fails with it. An inconclusive search is not a failure. The
+ * --warmup rounds run first for each thread count and are checked too,
+ * but their throughput is not reported. By default the thread counts are
+ * the powers of two up to 8, or up to the number of processors if that is
+ * larger, plus the number of processors itself.
+ *
+ * gradle stressTest runs it as part of check. Run by hand, from the
+ * stress source set's classes:
+ *
+ * Usage (all arguments optional, lists are comma separated):
+ *   java com.library.bench.LoanStressHarness --items=64 --users=24
+ *        --threads=1,2,4,8 --time=2000 --warmup=1 --rounds=1 --seed=1 --yield=0.05
+ *        --check=true --budget=2000000 --out=stress_output.txt
+ */
+public final class LoanStressHarness {
+    static final int BORROW = 0;
+    static final int RETURN = 1;
+    static final int MAYBE_RETURN = 2;
+
+    private LoanStressHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int itemCount = Integer.parseInt(options.getOrDefault("items", "64"));
+        int userCount = Integer.parseInt(options.getOrDefault("users", "24"));
+        int[] threadCounts = options.containsKey("threads") ? intList(options.get("threads")) : defaultThreadCounts();
+        long millis = Long.parseLong(options.getOrDefault("time", "2000"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "1"));
+        long seed = Long.parseLong(options.getOrDefault("seed", String.valueOf(System.nanoTime())));
+        double yieldRate = Double.parseDouble(options.getOrDefault("yield", "0.05"));
+        boolean check = Boolean.parseBoolean(options.getOrDefault("check", "true"));
+        long budget = Long.parseLong(options.getOrDefault("budget", "2000000"));
+        if (itemCount < 1 || itemCount > 0xFFFF || userCount < 1 || userCount > 0xFFFF) {
+            throw new IllegalArgumentException("items and users must be between 1 and 65535");
+        }
+
+        PrintWriter out = options.containsKey("out")
+                ? new PrintWriter(new FileWriter(options.get("out"), true), true)
+                : new PrintWriter(System.out, true);
+        out.println("# seed=" + seed);
+        out.println("# threads\tround\tops\tops/s\tborrowed\treturned\topenLoans\tviolations\tlinearizable");
+        boolean failed = false;
+        for (int threads : threadCounts) {
+            for (int round = -warmup; round < rounds; round++) {
+                Run run = new Run(itemCount, userCount, threads, seed + 31L * threads + round, yieldRate);
+                // collect the previous run's logs now rather than during this one
+                System.gc();
+                run.execute(millis);
+                List<String> violations = run.checkInvariants();
+                String linearizable = "skipped";
+                if (check) {
+                    linearizable = run.checkLinearizable(budget, violations);
+                }
+                failed |= !violations.isEmpty();
+                for (String violation : violations.subList(0, Math.min(20, violations.size()))) {
+                    out.println("# VIOLATION " + violation);
+                }
+                if (round < 0) {
+                    continue;
+                }
+                out.printf(Locale.ROOT, "%d\t%d\t%d\t%.1f\t%d\t%d\t%d\t%d\t%s%n",
+                        threads, round, run.operations, run.operations * 1e9 / Math.max(1, run.nanos),
+                        run.borrowed, run.returned, run.library.getOpenLoanCount(), violations.size(), linearizable);
+            }
+        }
+        if (options.containsKey("out")) {
+            out.close();
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * One library, its workers and their logs.
+     */
+    static final class Run {
+        final Library library = new Library("Stress Library");
+        final LocalDate today = LocalDate.now();
+        final List<LibraryItem> items = new ArrayList<>();
+        final List<User> users = new ArrayList<>();
+        final Map<LibraryItem, Integer> itemIndex = new IdentityHashMap<>();
+        final Map<User, Integer> userIndex = new IdentityHashMap<>();
+        final int threads;
+        final long seed;
+        final double yieldRate;
+        final EventLog[] logs;
+        final List<String> monitorViolations = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        long operations;
+        long nanos;
+        long borrowed;
+        long returned;
+
+        Run(int itemCount, int userCount, int threads, long seed, double yieldRate) {
+            this.threads = threads;
+            this.seed = seed;
+            this.yieldRate = yieldRate;
+            this.logs = new EventLog[threads];
+            for (int i = 0; i < itemCount; i++) {
+                LibraryItem item = (i % 4 == 3)
+                        ? new Magazine("M" + i, "Magazine " + i, 2000, 1 + i % 52, "Publisher")
+                        : new Book("B" + i, "Book " + i, 2000, "Author", "ISBN" + i, 100);
+                library.addItem(item);
+                itemIndex.put(item, i);
+                items.add(item);
+            }
+            for (int i = 0; i < userCount; i++) {
+                User user = (i % 4 == 3)
+                        ? new Professor("P" + i, "Professor " + i, "p" + i + "@example.com", "Department")
+                        : new Student("S" + i, "Student " + i, "s" + i + "@example.com", "ID" + i);
+                library.addUser(user);
+                userIndex.put(user, i);
+                users.add(user);
+            }
+        }
+
+        void execute(long millis) throws InterruptedException {
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(threads);
+            AtomicBoolean running = new AtomicBoolean(true);
+            long[] busy = new long[threads];
+            long[] counts = new long[threads];
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                logs[t] = new EventLog();
+                Thread worker = new Thread(() -> {
+                    SplittableRandom random = new SplittableRandom(seed * 1_000_003L + id);
+                    try {
+                        start.await();
+                        long begin = System.nanoTime();
+                        long deadline = begin + millis * 1_000_000L;
+                        long count = 0;
+                        long now;
+                        do {
+                            step(random, logs[id]);
+                            count++;
+                            now = System.nanoTime();
+                        } while (now < deadline);
+                        busy[id] = now - begin;
+                        counts[id] = count;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }, "stress-" + t);
+                worker.start();
+            }
+            Thread monitor = new Thread(() -> {
+                while (running.get()) {
+                    for (User user : users) {
+                        int count = user.getBorrowedItemsCount();
+                        if (count > user.getMaxBorrowLimit() || count < 0) {
+                            monitorViolations.add(user.getUserId() + " had " + count + " loans while running, limit "
+                                    + user.getMaxBorrowLimit());
+                        }
+                    }
+                    // sample rather than spin, so the monitor does not eat into the measured throughput
+                    LockSupport.parkNanos(100_000);
+                }
+            }, "stress-monitor");
+            monitor.setDaemon(true);
+            monitor.start();
+            start.countDown();
+            done.await();
+            running.set(false);
+            monitor.join();
+            for (int t = 0; t < threads; t++) {
+                operations += counts[t];
+                nanos += busy[t];
+            }
+            nanos /= threads;
+            for (EventLog log : logs) {
+                for (int i = 0; i < log.size; i++) {
+                    int type = EventLog.type(log.keys[i]);
+                    if (type == BORROW) {
+                        borrowed++;
+                    } else if (type == RETURN) {
+                        returned++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * One random call, logged if it succeeded.
+         */
+        private void step(SplittableRandom random, EventLog log) {
+            User user = users.get(random.nextInt(users.size()));
+            LibraryItem item = items.get(random.nextInt(items.size()));
+            int op = random.nextInt(10);
+            jitter(random);
+            long begin = System.nanoTime();
+            if (op < 4) {
+                if (library.borrowItem(user, item, today, today.plusDays(14))) {
+                    log.add(itemIndex.get(item), userIndex.get(user), BORROW, begin, System.nanoTime());
+                }
+            } else if (op < 7) {
+                if (library.returnItem(user, item)) {
+                    log.add(itemIndex.get(item), userIndex.get(user), RETURN, begin, System.nanoTime());
+                }
+            } else if (op < 9) {
+                List<LibraryItem> batch = new ArrayList<>();
+                for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                    LibraryItem candidate = items.get(random.nextInt(items.size()));
+                    if (!batch.contains(candidate)) {
+                        batch.add(candidate);
+                    }
+                }
+                List<String> results = library.borrowMultipleItems(user, batch, 14);
+                long end = System.nanoTime();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (results.get(i).startsWith("SUCCESS")) {
+                        log.add(itemIndex.get(batch.get(i)), userIndex.get(user), BORROW, begin, end);
+                    }
+                }
+            } else {
+                BorrowRecord record = library.findOpenLoan(user, item);
+                if (record != null) {
+                    jitter(random);
+                    record.markAsReturned(today);
+                    log.add(itemIndex.get(item), userIndex.get(user), MAYBE_RETURN, begin, System.nanoTime());
+                }
+            }
+        }
+
+        private void jitter(SplittableRandom random) {
+            if (random.nextDouble() < yieldRate) {
+                if (random.nextBoolean()) {
+                    Thread.yield();
+                } else {
+                    for (int i = random.nextInt(200); i > 0; i--) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Checks the state the workers left behind.
+         */
+        List<String> checkInvariants() {
+            List<String> violations = new ArrayList<>(monitorViolations);
+            Throwable thrown = error.get();
+            if (thrown != null) {
+                violations.add("worker threw " + thrown);
+            }
+            Map<LibraryItem, User> holders = new IdentityHashMap<>();
+            for (User user : users) {
+                List<LibraryItem> held = user.getBorrowedItems();
+                if (user.getBorrowedItemsCount() != held.size()) {
+                    violations.add(user.getUserId() + " counts " + user.getBorrowedItemsCount() + " loans but holds " + held.size());
+                }
+                if (held.size() > user.getMaxBorrowLimit()) {
+                    violations.add(user.getUserId() + " holds " + held.size() + " items, limit " + user.getMaxBorrowLimit());
+                }
+                for (LibraryItem item : held) {
+                    User other = holders.put(item, user);
+                    if (other != null) {
+                        violations.add(item.getId() + " is held by both " + other.getUserId() + " and " + user.getUserId());
+                    }
+                }
+            }
+            int available = 0;
+            for (LibraryItem item : items) {
+                User holder = holders.get(item);
+                if (item.isAvailable() == (holder != null)) {
+                    violations.add(item.getId() + " is " + (item.isAvailable() ? "available" : "lent out")
+                            + " but held by " + (holder == null ? "nobody" : holder.getUserId()));
+                }
+                if (item.isAvailable()) {
+                    available++;
+                }
+                if (holder != null) {
+                    BorrowRecord record = library.findOpenLoan(holder, item);
+                    if (record == null) {
+                        violations.add(item.getId() + " is held by " + holder.getUserId() + " without an open record");
+                    } else if (record.getReturnDate() != null) {
+                        violations.add(item.getId() + " has an open record that is marked returned: " + record);
+                    }
+                }
+            }
+            for (BorrowRecord record : library.getOpenLoans()) {
+                if (holders.get(record.getItem()) != record.getUser()) {
+                    violations.add("open record without a matching loan: " + record);
+                }
+            }
+            if (library.getOpenLoanCount() != holders.size()) {
+                violations.add(library.getOpenLoanCount() + " open records for " + holders.size() + " loans");
+            }
+            if (library.getAvailableItemCount() != available) {
+                violations.add("availability index counts " + library.getAvailableItemCount() + " items, " + available + " are available");
+            }
+            if (library.getBorrowRecordCount() != borrowed) {
+                violations.add("history has " + library.getBorrowRecordCount() + " records for " + borrowed + " successful borrows");
+            }
+            return violations;
+        }
+
+        /**
+         * Checks each item's log and returns "yes", or "inconclusive" if the
+         * search budget ran out for some item; non-linearizable items are
+         * added to violations.
+         */
+        String checkLinearizable(long budget, List<String> violations) {
+            List<List<long[]>> byItem = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                byItem.add(new ArrayList<>());
+            }
+            for (EventLog log : logs) {
+                for (int i = 0; i < log.size; i++) {
+                    byItem.get(EventLog.item(log.keys[i])).add(new long[] {log.keys[i], log.begins[i], log.ends[i]});
+                }
+            }
+            int inconclusive = 0;
+            for (int i = 0; i < items.size(); i++) {
+                List<long[]> events = byItem.get(i);
+                events.sort(Comparator.comparingLong(event -> event[1]));
+                int result = new LinearizabilityChecker(events).check(budget);
+                if (result == LinearizabilityChecker.VIOLATED) {
+                    violations.add(items.get(i).getId() + ": no linearization of its " + events.size() + " successful calls");
+                } else if (result == LinearizabilityChecker.INCONCLUSIVE) {
+                    inconclusive++;
+                }
+            }
+            for (String violation : violations) {
+                if (violation.contains("no linearization")) {
+                    return "no";
+                }
+            }
+            return inconclusive == 0 ? "yes" : "inconclusive(" + inconclusive + ")";
+        }
+    }
+
+    /**
+     * Successful calls of one worker: item, user and kind packed into a key,
+     * with start and end times.
+     */
+    static final class EventLog {
+        long[] keys = new long[1024];
+        long[] begins = new long[1024];
+        long[] ends = new long[1024];
+        int size;
+
+        void add(int item, int user, int type, long begin, long end) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                begins = Arrays.copyOf(begins, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            keys[size] = (long) item << 32 | (long) user << 16 | type;
+            begins[size] = begin;
+            ends[size] = end;
+            size++;
+        }
+
+        static int item(long key) {
+            return (int) (key >>> 32);
+        }
+
+        static int user(long key) {
+            return (int) (key >>> 16) & 0xFFFF;
+        }
+
+        static int type(long key) {
+            return (int) key & 0xFFFF;
+        }
+    }
+
+    /**
+     * Depth-first search for a linearization of one item's successful calls,
+     * each given as {key, begin, end} and sorted by begin.
+     *
+     * A call can come next if it began before every remaining call ended. A
+     * borrow needs the item free and a return needs it held by the returning
+     * user; a MAYBE_RETURN is tried both as a return and as a no-op.
+     */
+    static final class LinearizabilityChecker {
+        static final int LINEARIZABLE = 0;
+        static final int VIOLATED = 1;
+        static final int INCONCLUSIVE = 2;
+        private static final int FREE = -1;
+
+        private final long[][] events;
+        private final boolean[] done;
+
+        LinearizabilityChecker(List<long[]> events) {
+            this.events = events.toArray(new long[0][]);
+            this.done = new boolean[this.events.length];
+        }
+
+        int check(long budget) {
+            int n = events.length;
+            // per depth: the next choice to try (index * 2 + skip) and what was applied
+            int[] cursor = new int[n + 1];
+            int[] chosen = new int[n];
+            int[] previousHolder = new int[n];
+            int holder = FREE;
+            int first = 0;
+            int depth = 0;
+            long steps = 0;
+            while (depth < n) {
+                if (++steps > budget) {
+                    return INCONCLUSIVE;
+                }
+                long minEnd = Long.MAX_VALUE;
+                int end = first;
+                while (end < n && events[end][1] <= minEnd) {
+                    if (!done[end]) {
+                        minEnd = Math.min(minEnd, events[end][2]);
+                    }
+                    end++;
+                }
+                int choice = -1;
+                for (int c = Math.max(cursor[depth], first * 2); c < end * 2; c++) {
+                    int index = c >> 1;
+                    if (done[index] || events[index][1] > minEnd) {
+                        continue;
+                    }
+                    int type = EventLog.type(events[index][0]);
+                    int user = EventLog.user(events[index][0]);
+                    boolean skip = (c & 1) != 0;
+                    if (skip ? type == MAYBE_RETURN
+                             : type == BORROW ? holder == FREE : holder == user) {
+                        choice = c;
+                        break;
+                    }
+                }
+                if (choice < 0) {
+                    if (depth == 0) {
+                        return VIOLATED;
+                    }
+                    depth--;
+                    int index = chosen[depth] >> 1;
+                    done[index] = false;
+                    holder = previousHolder[depth];
+                    first = Math.min(first, index);
+                    continue;
+                }
+                int index = choice >> 1;
+                chosen[depth] = choice;
+                previousHolder[depth] = holder;
+                cursor[depth] = choice + 1;
+                if ((choice & 1) == 0) {
+                    holder = EventLog.type(events[index][0]) == BORROW ? EventLog.user(events[index][0]) : FREE;
+                }
+                done[index] = true;
+                while (first < n && done[first]) {
+                    first++;
+                }
+                depth++;
+                cursor[depth] = 0;
+            }
+            return LINEARIZABLE;
+        }
+    }
+
+    private static int[] defaultThreadCounts() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        SortedSet<Integer> counts = new TreeSet<>();
+        for (int threads = 1; threads <= Math.max(8, processors); threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(processors);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static int[] intList(String value) {
+        return Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}